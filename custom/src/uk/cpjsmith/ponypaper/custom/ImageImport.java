@@ -9,6 +9,7 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Iterator;
 import javax.imageio.IIOImage;
@@ -103,7 +104,8 @@ public class ImageImport {
         }
         
         BufferedImage sheet = new BufferedImage(frames.size() * frameWidth, frameHeight, BufferedImage.TYPE_INT_ARGB);
-        StringBuilder timings = new StringBuilder();
+        List<Integer> delays = new ArrayList<Integer>();
+        int[] lastPixels = null;
         
         Graphics2D sheetG = sheet.createGraphics();
         BufferedImage currentFrame = new BufferedImage(frameWidth, frameHeight, BufferedImage.TYPE_INT_ARGB);
@@ -119,7 +121,19 @@ public class ImageImport {
             }
             
             frameG.drawImage(frame.image, frame.bounds.x, frame.bounds.y, frame.bounds.width, frame.bounds.height, null);
-            sheetG.drawImage(currentFrame, i * frameWidth, 0, frameWidth, frameHeight, null);
+            
+            // A frame that looks the same as the one before just makes that
+            // one last longer.
+            int delay = Integer.parseInt(frame.delay);
+            int[] pixels = currentFrame.getRGB(0, 0, frameWidth, frameHeight, null, 0, frameWidth);
+            if (lastPixels != null && Arrays.equals(pixels, lastPixels)) {
+                int last = delays.size() - 1;
+                delays.set(last, delays.get(last) + delay);
+            } else {
+                sheetG.drawImage(currentFrame, delays.size() * frameWidth, 0, frameWidth, frameHeight, null);
+                delays.add(delay);
+                lastPixels = pixels;
+            }
             
             if (frame.disposal.equals("restoreToBackgroundColor")) {
                 frameG.clearRect(frame.bounds.x, frame.bounds.y, frame.bounds.width, frame.bounds.height);
@@ -127,13 +141,16 @@ public class ImageImport {
                 frameG.clearRect(0, 0, frameWidth, frameHeight);
                 frameG.drawImage(previousFrame, 0, 0, frameWidth, frameHeight, null);
             }
-            
+        }
+        
+        StringBuilder timings = new StringBuilder();
+        for (int i = 0; i < delays.size(); i++) {
             if (i != 0) timings.append(",");
-            timings.append(frame.delay);
+            timings.append(delays.get(i));
         }
         
         ByteArrayOutputStream out = new ByteArrayOutputStream();
-        ImageIO.write(sheet, "png", out);
+        ImageIO.write(sheet.getSubimage(0, 0, delays.size() * frameWidth, frameHeight), "png", out);
         
         return new ImageImport(out.toByteArray(), timings.toString());
     }
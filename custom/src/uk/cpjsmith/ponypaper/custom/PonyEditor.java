@@ -234,6 +234,16 @@ public class PonyEditor {
         ponyDefinition.actions[index].specialType = specialType;
     }
     
+    public String getActionMirror(int index) {
+        if (index < 0 || index >= ponyDefinition.actions.length) throw new IndexOutOfBoundsException();
+        return ponyDefinition.actions[index].mirror;
+    }
+    
+    public void setActionMirror(int index, String mirror) {
+        if (index < 0 || index >= ponyDefinition.actions.length) throw new IndexOutOfBoundsException();
+        ponyDefinition.actions[index].mirror = mirror;
+    }
+    
     public String getActionImage(int index, String direction) {
         if (index < 0 || index >= ponyDefinition.actions.length) throw new IndexOutOfBoundsException();
         if (!ponyDefinition.actions[index].images.containsKey(direction)) throw new IndexOutOfBoundsException();
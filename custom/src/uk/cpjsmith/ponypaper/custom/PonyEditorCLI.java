@@ -39,6 +39,12 @@ public class PonyEditorCLI {
                         editor.load(new File(args[++i]));
                         break;
                         
+                    case "-mirror":
+                        checkArgument(args, i);
+                        if (currentAction < 0) throw new PonyEditor.GenericException("", "No current action for " + args[i]);
+                        editor.setActionMirror(currentAction, args[++i]);
+                        break;
+                        
                     case "-next":
                     {
                         checkArgument(args, i, 2);
@@ -108,6 +114,8 @@ public class PonyEditorCLI {
         System.out.println("    Set the current action's next actions of the given type.");
         System.out.println("-special TYPE");
         System.out.println("    Set the current action's special type.");
+        System.out.println("-mirror DIRECTION");
+        System.out.println("    Draw the current action's sprite for the given direction by flipping the other one.");
         System.out.println("-sprite DIRECTION FILE");
         System.out.println("    Set the current action's sprite for the given direction.");
     }
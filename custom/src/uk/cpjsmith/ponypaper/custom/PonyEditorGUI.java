@@ -75,6 +75,15 @@ public class PonyEditorGUI extends JPanel {
             }
         };
         
+        DocumentListener mirrorListener = new MyDocumentListener() {
+            public void update(DocumentEvent e) {
+                if (currentIndex >= 0) {
+                    editor.setActionMirror(currentIndex, mirrorField.getText());
+                    hasChanges = true;
+                }
+            }
+        };
+        
         ActionListener previewLeftListener = new ActionListener() {
             public void actionPerformed(ActionEvent e) {
                 previewImage(editor.getActionImage(currentIndex, "left"), editor.getActionTimings(currentIndex, "left"));
@@ -156,6 +165,7 @@ public class PonyEditorGUI extends JPanel {
         JTextField nextWaitingField;
         JTextField nextMovingField;
         JTextField nextDragField;
+        JTextField mirrorField;
         
         int currentIndex;
         
@@ -291,6 +301,18 @@ public class PonyEditorGUI extends JPanel {
             c.fill = GridBagConstraints.HORIZONTAL;
             add(nextDragField, c);
             
+            JLabel mirrorLabel = new JLabel("Mirror:");
+            c = getConstraints(0, 12);
+            c.weighty = 1.0;
+            c.anchor = GridBagConstraints.WEST;
+            add(mirrorLabel, c);
+            
+            mirrorField = new JTextField();
+            mirrorField.getDocument().addDocumentListener(mirrorListener);
+            c = getConstraints(1, 12);
+            c.fill = GridBagConstraints.HORIZONTAL;
+            add(mirrorField, c);
+            
             setAction(-1);
         }
         
@@ -306,6 +328,7 @@ public class PonyEditorGUI extends JPanel {
                 nextWaitingField.setText(editor.getActionNext(index, "waiting"));
                 nextMovingField.setText(editor.getActionNext(index, "moving"));
                 nextDragField.setText(editor.getActionNext(index, "drag"));
+                mirrorField.setText(editor.getActionMirror(index));
                 
                 setEnabled(true);
             } else {
@@ -317,6 +340,7 @@ public class PonyEditorGUI extends JPanel {
                 nextWaitingField.setText("");
                 nextMovingField.setText("");
                 nextDragField.setText("");
+                mirrorField.setText("");
                 
                 setEnabled(false);
             }
@@ -371,6 +395,7 @@ public class PonyEditorGUI extends JPanel {
             nextWaitingField.setEnabled(enabled);
             nextMovingField.setEnabled(enabled);
             nextDragField.setEnabled(enabled);
+            mirrorField.setEnabled(enabled);
         }
         
     }
@@ -17,6 +17,8 @@ import org.w3c.dom.Document;
  */
 public class AllPonies {
     
+    private static final String CUSTOM_PREFIX = "pref_custom_";
+    
     public static final FilenameFilter xmlFilter = new FilenameFilter() {
         @Override
         public boolean accept(File dir, String filename) {
@@ -30,6 +32,51 @@ public class AllPonies {
     private AllPonies() {
     }
     
+    /**
+     * The preference keys of the built-in ponies.
+     */
+    private static final String[] builtInKeys = {
+        "pref_ab",
+        "pref_aj",
+        "pref_babs",
+        "pref_bp",
+        "pref_bigmac",
+        "pref_derpy",
+        "pref_doctor",
+        "pref_ember",
+        "pref_fs",
+        "pref_gallus",
+        "pref_gilda",
+        "pref_lyra",
+        "pref_minuette",
+        "pref_ocellus",
+        "pref_octavia",
+        "pref_pp",
+        "pref_cadance",
+        "pref_celestia",
+        "pref_luna",
+        "pref_rd",
+        "pref_rarity",
+        "pref_sandbar",
+        "pref_scootaloo",
+        "pref_sa",
+        "pref_silverstream",
+        "pref_smolder",
+        "pref_soarin",
+        "pref_spike",
+        "pref_spitfire",
+        "pref_sg",
+        "pref_ss",
+        "pref_sb",
+        "pref_sd",
+        "pref_thorax",
+        "pref_trixie",
+        "pref_ts",
+        "pref_vinyl",
+        "pref_yona",
+        "pref_zecora"
+    };
+    
     /**
      * Returns the complete list of ponies.
      * 
@@ -41,50 +88,95 @@ public class AllPonies {
         ArrayList<Pony> result = new ArrayList<Pony>();
         
         Resources res = context.getResources();
-        if (prefs.getBoolean("pref_ab", true)) result.add(makeAppleBloom(res));
-        if (prefs.getBoolean("pref_aj", true)) result.add(makeApplejack(res));
-        if (prefs.getBoolean("pref_babs", true)) result.add(makeBabsSeed(res));
-        if (prefs.getBoolean("pref_bp", true)) result.add(makeBerryPunch(res));
-        if (prefs.getBoolean("pref_bigmac", true)) result.add(makeBigMcIntosh(res));
-        if (prefs.getBoolean("pref_derpy", true)) result.add(makeDerpyHooves(res));
-        if (prefs.getBoolean("pref_doctor", true)) result.add(makeDoctorHooves(res));
-        if (prefs.getBoolean("pref_ember", true)) result.add(makeEmber(res));
-        if (prefs.getBoolean("pref_fs", true)) result.add(makeFluttershy(res));
-        if (prefs.getBoolean("pref_gallus", true)) result.add(makeGallus(res));
-        if (prefs.getBoolean("pref_gilda", true)) result.add(makeGilda(res));
-        if (prefs.getBoolean("pref_lyra", true)) result.add(makeLyraHeartstrings(res));
-        if (prefs.getBoolean("pref_minuette", true)) result.add(makeMinuette(res));
-        if (prefs.getBoolean("pref_ocellus", true)) result.add(makeOcellus(res));
-        if (prefs.getBoolean("pref_octavia", true)) result.add(makeOctavia(res));
-        if (prefs.getBoolean("pref_pp", true)) result.add(makePinkiePie(res));
-        if (prefs.getBoolean("pref_cadance", true)) result.add(makePrincessCadance(res));
-        if (prefs.getBoolean("pref_celestia", true)) result.add(makePrincessCelestia(res));
-        if (prefs.getBoolean("pref_luna", true)) result.add(makePrincessLuna(res));
-        if (prefs.getBoolean("pref_rd", true)) result.add(makeRainbowDash(res));
-        if (prefs.getBoolean("pref_rarity", true)) result.add(makeRarity(res));
-        if (prefs.getBoolean("pref_sandbar", true)) result.add(makeSandbar(res));
-        if (prefs.getBoolean("pref_scootaloo", true)) result.add(makeScootaloo(res));
-        if (prefs.getBoolean("pref_sa", true)) result.add(makeShiningArmor(res));
-        if (prefs.getBoolean("pref_silverstream", true)) result.add(makeSilverstream(res));
-        if (prefs.getBoolean("pref_smolder", true)) result.add(makeSmolder(res));
-        if (prefs.getBoolean("pref_soarin", true)) result.add(makeSoarin(res));
-        if (prefs.getBoolean("pref_spike", true)) result.add(makeSpike(res));
-        if (prefs.getBoolean("pref_spitfire", true)) result.add(makeSpitfire(res));
-        if (prefs.getBoolean("pref_sg", true)) result.add(makeStarlightGlimmer(res));
-        if (prefs.getBoolean("pref_ss", true)) result.add(makeSunsetShimmer(res));
-        if (prefs.getBoolean("pref_sb", true)) result.add(makeSweetieBelle(res));
-        if (prefs.getBoolean("pref_sd", true)) result.add(makeSweetieDrops(res));
-        if (prefs.getBoolean("pref_thorax", true)) result.add(makeThorax(res));
-        if (prefs.getBoolean("pref_trixie", true)) result.add(makeTrixie(res));
-        if (prefs.getBoolean("pref_ts", true)) result.add(makeTwilightSparkle(res));
-        if (prefs.getBoolean("pref_vinyl", true)) result.add(makeVinylScratch(res));
-        if (prefs.getBoolean("pref_yona", true)) result.add(makeYona(res));
-        if (prefs.getBoolean("pref_zecora", true)) result.add(makeZecora(res));
+        for (String key : builtInKeys) {
+            if (prefs.getBoolean(key, true)) result.add(makeBuiltInPony(res, key));
+        }
         loadCustomPonies(context, prefs, result);
         
         return result;
     }
     
+    /**
+     * Determines whether a preference key is the one that enables or disables
+     * a pony.
+     * 
+     * @param key the preference key
+     * @return {@code true} if {@link #makePony} would recognise the key
+     */
+    public static boolean isPonyKey(String key) {
+        if (key.startsWith(CUSTOM_PREFIX)) return true;
+        for (String builtInKey : builtInKeys) {
+            if (builtInKey.equals(key)) return true;
+        }
+        return false;
+    }
+    
+    /**
+     * Creates a single pony, identified by the preference key that enables
+     * it. This ignores the value of the preference itself.
+     * 
+     * @param context the current application context
+     * @param key     the preference key of the pony
+     * @return the pony, or {@code null} if it could not be loaded
+     */
+    public static Pony makePony(Context context, String key) {
+        if (key.startsWith(CUSTOM_PREFIX)) {
+            File dir = context.getExternalFilesDir(null);
+            if (dir == null) return null;
+            return loadCustomPony(new File(dir, key.substring(CUSTOM_PREFIX.length())));
+        }
+        return makeBuiltInPony(context.getResources(), key);
+    }
+    
+    private static Pony makeBuiltInPony(Resources res, String key) {
+        Pony pony = createBuiltInPony(res, key);
+        if (pony != null) pony.setKey(key);
+        return pony;
+    }
+    
+    private static Pony createBuiltInPony(Resources res, String key) {
+        if (key.equals("pref_ab")) return makeAppleBloom(res);
+        if (key.equals("pref_aj")) return makeApplejack(res);
+        if (key.equals("pref_babs")) return makeBabsSeed(res);
+        if (key.equals("pref_bp")) return makeBerryPunch(res);
+        if (key.equals("pref_bigmac")) return makeBigMcIntosh(res);
+        if (key.equals("pref_derpy")) return makeDerpyHooves(res);
+        if (key.equals("pref_doctor")) return makeDoctorHooves(res);
+        if (key.equals("pref_ember")) return makeEmber(res);
+        if (key.equals("pref_fs")) return makeFluttershy(res);
+        if (key.equals("pref_gallus")) return makeGallus(res);
+        if (key.equals("pref_gilda")) return makeGilda(res);
+        if (key.equals("pref_lyra")) return makeLyraHeartstrings(res);
+        if (key.equals("pref_minuette")) return makeMinuette(res);
+        if (key.equals("pref_ocellus")) return makeOcellus(res);
+        if (key.equals("pref_octavia")) return makeOctavia(res);
+        if (key.equals("pref_pp")) return makePinkiePie(res);
+        if (key.equals("pref_cadance")) return makePrincessCadance(res);
+        if (key.equals("pref_celestia")) return makePrincessCelestia(res);
+        if (key.equals("pref_luna")) return makePrincessLuna(res);
+        if (key.equals("pref_rd")) return makeRainbowDash(res);
+        if (key.equals("pref_rarity")) return makeRarity(res);
+        if (key.equals("pref_sandbar")) return makeSandbar(res);
+        if (key.equals("pref_scootaloo")) return makeScootaloo(res);
+        if (key.equals("pref_sa")) return makeShiningArmor(res);
+        if (key.equals("pref_silverstream")) return makeSilverstream(res);
+        if (key.equals("pref_smolder")) return makeSmolder(res);
+        if (key.equals("pref_soarin")) return makeSoarin(res);
+        if (key.equals("pref_spike")) return makeSpike(res);
+        if (key.equals("pref_spitfire")) return makeSpitfire(res);
+        if (key.equals("pref_sg")) return makeStarlightGlimmer(res);
+        if (key.equals("pref_ss")) return makeSunsetShimmer(res);
+        if (key.equals("pref_sb")) return makeSweetieBelle(res);
+        if (key.equals("pref_sd")) return makeSweetieDrops(res);
+        if (key.equals("pref_thorax")) return makeThorax(res);
+        if (key.equals("pref_trixie")) return makeTrixie(res);
+        if (key.equals("pref_ts")) return makeTwilightSparkle(res);
+        if (key.equals("pref_vinyl")) return makeVinylScratch(res);
+        if (key.equals("pref_yona")) return makeYona(res);
+        if (key.equals("pref_zecora")) return makeZecora(res);
+        return null;
+    }
+    
     private static Pony makeDefaultPony(Resources res, int standId, int trotId) {
         PonyAction stand = new PonyAction(res, standId);
         PonyAction trot = new PonyAction(res, trotId);
@@ -633,22 +725,30 @@ public class AllPonies {
         
         File[] files = dir.listFiles(xmlFilter);
         
-        DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
         for (int i = 0; i < files.length; i++) {
-            if (prefs.getBoolean("pref_custom_" + files[i].getName(), true)) {
-                try {
-                    DocumentBuilder docBuilder = dbf.newDocumentBuilder();
-                    Document document = docBuilder.parse(files[i]);
-                    PonyDefinition definition = new PonyDefinition(document);
-                    definition.validate();
-                    ponies.add(makeCustomPony(definition));
-                } catch (Exception e) {
-                    android.util.Log.e("PonyPaper", "Error loading " + files[i] + ": " + e.toString());
-                }
+            if (prefs.getBoolean(CUSTOM_PREFIX + files[i].getName(), true)) {
+                Pony pony = loadCustomPony(files[i]);
+                if (pony != null) ponies.add(pony);
             }
         }
     }
     
+    private static Pony loadCustomPony(File file) {
+        try {
+            DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+            DocumentBuilder docBuilder = dbf.newDocumentBuilder();
+            Document document = docBuilder.parse(file);
+            PonyDefinition definition = new PonyDefinition(document);
+            definition.validate();
+            Pony pony = makeCustomPony(definition);
+            pony.setKey(CUSTOM_PREFIX + file.getName());
+            return pony;
+        } catch (Exception e) {
+            android.util.Log.e("PonyPaper", "Error loading " + file + ": " + e.toString());
+            return null;
+        }
+    }
+    
     private static Pony makeCustomPony(PonyDefinition definition) {
         HashMap<String, PonyAction> actions = new HashMap<String, PonyAction>();
         
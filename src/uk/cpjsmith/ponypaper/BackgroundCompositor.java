@@ -0,0 +1,163 @@
+package uk.cpjsmith.ponypaper;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import java.io.File;
+
+/**
+ * Draws the wallpaper's background. A background image is scaled to cover the
+ * surface and positioned according to the launcher's scroll offsets. The
+ * result is rendered once into a bitmap the size of the surface and reused
+ * until the image, the surface size or the offsets change, so that each frame
+ * only has to copy it.
+ */
+public class BackgroundCompositor {
+    
+    private Bitmap source = null;
+    private int colour = 0xff333333;
+    
+    private int width = 0;
+    private int height = 0;
+    private float xOffset = 0.5f;
+    private float yOffset = 0.5f;
+    
+    private Bitmap composite = null;
+    private boolean compositeValid = false;
+    private final Paint scalePaint = new Paint();
+    
+    /**
+     * Decodes a background image, reducing its resolution to give it a
+     * pixellated appearance.
+     * 
+     * @param file       the image file
+     * @param width      the width of the surface it will be drawn on
+     * @param height     the height of the surface it will be drawn on
+     * @param pixelation the number of image pixels to merge together, in
+     *                   addition to any reduction needed to fit the surface
+     * @return the decoded image, or {@code null} if it could not be decoded
+     */
+    public static Bitmap decode(File file, int width, int height, int pixelation) {
+        BitmapFactory.Options bfo = new BitmapFactory.Options();
+        bfo.inScaled = false;
+        bfo.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(file.toString(), bfo);
+        int h = bfo.outHeight, w = bfo.outWidth;
+        int scale = Math.min(h / height, w / width);
+        scale *= pixelation;
+        bfo.inJustDecodeBounds = false;
+        bfo.inSampleSize = scale;
+        return BitmapFactory.decodeFile(file.toString(), bfo);
+    }
+    
+    /**
+     * Sets the image to draw, replacing any previous image.
+     * 
+     * @param source the image, or {@code null} to draw a solid colour
+     */
+    public void setImage(Bitmap source) {
+        this.source = source;
+        compositeValid = false;
+        if (source == null) composite = null;
+    }
+    
+    /**
+     * Sets the colour to draw when there is no image.
+     * 
+     * @param colour the colour in ARGB format
+     */
+    public void setColour(int colour) {
+        this.colour = colour;
+    }
+    
+    /**
+     * Sets the size of the surface that will be drawn on.
+     * 
+     * @param width  the width in pixels
+     * @param height the height in pixels
+     */
+    public void setSize(int width, int height) {
+        if (width != this.width || height != this.height) {
+            this.width = width;
+            this.height = height;
+            compositeValid = false;
+            composite = null;
+        }
+    }
+    
+    /**
+     * Sets the position of the image, as reported to
+     * {@link android.service.wallpaper.WallpaperService.Engine#onOffsetsChanged}.
+     * 
+     * @param xOffset the horizontal offset, from {@code 0} to {@code 1}
+     * @param yOffset the vertical offset, from {@code 0} to {@code 1}
+     */
+    public void setOffsets(float xOffset, float yOffset) {
+        if (xOffset != this.xOffset || yOffset != this.yOffset) {
+            this.xOffset = xOffset;
+            this.yOffset = yOffset;
+            compositeValid = false;
+        }
+    }
+    
+    /**
+     * Frees the composite of the image scaled to the surface. It is drawn
+     * again when next needed.
+     */
+    public void release() {
+        composite = null;
+        compositeValid = false;
+    }
+    
+    /**
+     * Determines whether there is an image to draw.
+     * 
+     * @return {@code true} if an image has been set
+     */
+    public boolean hasImage() {
+        return source != null;
+    }
+    
+    /**
+     * Draws the background, filling the whole of the canvas (or its clip).
+     * 
+     * @param c     the canvas to draw on
+     * @param paint the paint to draw with, e.g. to make it translucent; may
+     *              be {@code null}
+     */
+    public void drawOn(Canvas c, Paint paint) {
+        if (source == null || width == 0 || height == 0) {
+            if (paint == null) {
+                c.drawColor(colour);
+            } else {
+                int alpha = (colour >>> 24) * paint.getAlpha() / 255;
+                c.drawColor((alpha << 24) | (colour & 0xffffff));
+            }
+            return;
+        }
+        
+        if (!compositeValid) render();
+        c.drawBitmap(composite, 0, 0, paint);
+    }
+    
+    private void render() {
+        if (composite == null) {
+            composite = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        }
+        
+        Rect srcRect = new Rect(0, 0, source.getWidth(), source.getHeight());
+        float scale = Math.max((float)height / (float)srcRect.height(),
+                               (float)width / (float)srcRect.width());
+        float left = (width - srcRect.width() * scale) * xOffset;
+        float top = (height - srcRect.height() * scale) * yOffset;
+        RectF dstRect = new RectF(left, top, left + srcRect.width() * scale, top + srcRect.height() * scale);
+        
+        Canvas c = new Canvas(composite);
+        c.drawBitmap(source, srcRect, dstRect, scalePaint);
+        compositeValid = true;
+    }
+    
+}
@@ -0,0 +1,215 @@
+package uk.cpjsmith.ponypaper;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Keeps bitmaps that are no longer needed so that their memory can be reused
+ * when decoding others, via {@link BitmapFactory.Options#inBitmap}. Before
+ * KitKat a bitmap can only be reused for an image of exactly the same size, so
+ * bitmaps are grouped by their dimensions. From KitKat any bitmap with enough
+ * memory can be reused, so bitmaps are grouped into power-of-two size buckets.
+ * <p>
+ * The pool holds at most its byte budget, dropping the oldest bitmaps first.
+ * This class is thread-safe.
+ */
+public class BitmapPool {
+    
+    private static BitmapPool instance = null;
+    
+    private final HashMap<Long, ArrayList<Bitmap>> buckets = new HashMap<Long, ArrayList<Bitmap>>();
+    private final ArrayList<Bitmap> byAge = new ArrayList<Bitmap>();
+    private final long budget;
+    private long size = 0;
+    
+    /**
+     * Returns the pool shared by the whole process. Its budget is a
+     * sixteenth of the memory available to the process.
+     * 
+     * @return the pool
+     */
+    public static synchronized BitmapPool getInstance() {
+        if (instance == null) instance = new BitmapPool(Runtime.getRuntime().maxMemory() / 16);
+        return instance;
+    }
+    
+    /**
+     * Creates a new {@code BitmapPool}.
+     * 
+     * @param budget the most bytes of bitmap data to keep
+     */
+    public BitmapPool(long budget) {
+        this.budget = budget;
+    }
+    
+    /**
+     * Decodes an image, reusing a pooled bitmap if there is a suitable one.
+     * The decoded bitmap is mutable, so that it can itself be reused later.
+     * 
+     * @param source the image to decode
+     * @return the decoded image, or {@code null} if it could not be decoded
+     */
+    public Bitmap decode(Source source) {
+        BitmapFactory.Options opts = new BitmapFactory.Options();
+        opts.inScaled = false;
+        opts.inJustDecodeBounds = true;
+        source.decode(opts);
+        
+        opts.inJustDecodeBounds = false;
+        opts.inMutable = true;
+        opts.inBitmap = get(opts.outWidth, opts.outHeight);
+        if (opts.inBitmap == null) return source.decode(opts);
+        
+        try {
+            return source.decode(opts);
+        } catch (IllegalArgumentException e) {
+            // The image could not be decoded into the pooled bitmap after
+            // all (e.g. it has a different format), so decode it afresh.
+            put(opts.inBitmap);
+            opts.inBitmap = null;
+            return source.decode(opts);
+        }
+    }
+    
+    /**
+     * Creates a blank, mutable ARGB_8888 bitmap, reusing a pooled one if there
+     * is a suitable one. Bitmaps can only be resized from KitKat, so before
+     * that a new bitmap is always allocated.
+     * 
+     * @param width  the width of the bitmap
+     * @param height the height of the bitmap
+     * @return the bitmap, which may contain old pixels
+     */
+    public Bitmap obtain(int width, int height) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            Bitmap bitmap = get(width, height);
+            if (bitmap != null) {
+                bitmap.reconfigure(width, height, Bitmap.Config.ARGB_8888);
+                bitmap.setHasAlpha(true);
+                return bitmap;
+            }
+        }
+        return Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+    }
+    
+    /**
+     * Supplies an image to {@link #decode(Source)}, which may need to decode
+     * it more than once.
+     */
+    public interface Source {
+        
+        /**
+         * Decodes the image with the given options.
+         * 
+         * @param opts the options to pass to {@link BitmapFactory}
+         * @return the decoded image
+         */
+        Bitmap decode(BitmapFactory.Options opts);
+        
+    }
+    
+    /**
+     * Gives a bitmap to the pool for reuse. The bitmap must not be used again
+     * by the caller.
+     * 
+     * @param bitmap the bitmap
+     */
+    public synchronized void put(Bitmap bitmap) {
+        if (bitmap == null || !bitmap.isMutable() || bitmap.isRecycled()) return;
+        long bytes = getBytes(bitmap);
+        if (bytes > budget) return;
+        
+        while (size + bytes > budget) remove(byAge.get(0));
+        
+        Long key = getKey(bitmap);
+        ArrayList<Bitmap> bucket = buckets.get(key);
+        if (bucket == null) {
+            bucket = new ArrayList<Bitmap>();
+            buckets.put(key, bucket);
+        }
+        bucket.add(bitmap);
+        byAge.add(bitmap);
+        size += bytes;
+    }
+    
+    /**
+     * Discards all pooled bitmaps.
+     */
+    public synchronized void clear() {
+        buckets.clear();
+        byAge.clear();
+        size = 0;
+    }
+    
+    /**
+     * Returns the number of bytes of bitmap data currently held.
+     * 
+     * @return the size in bytes
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+    
+    private synchronized Bitmap get(int width, int height) {
+        if (width <= 0 || height <= 0) return null;
+        
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            // Every bitmap in a bucket is at least as big as the bucket's
+            // size, so look in the first bucket that is big enough.
+            long needed = (long)width * height * 4;
+            int bucket = 64 - Long.numberOfLeadingZeros(needed - 1);
+            for (int i = bucket; i < bucket + 2; i++) {
+                Bitmap bitmap = take(Long.valueOf(i));
+                if (bitmap != null) return bitmap;
+            }
+            return null;
+        } else {
+            return take(getExactKey(width, height));
+        }
+    }
+    
+    private Bitmap take(Long key) {
+        ArrayList<Bitmap> bucket = buckets.get(key);
+        if (bucket == null || bucket.isEmpty()) return null;
+        Bitmap bitmap = bucket.get(bucket.size() - 1);
+        remove(bitmap);
+        return bitmap;
+    }
+    
+    private void remove(Bitmap bitmap) {
+        buckets.get(getKey(bitmap)).remove(bitmap);
+        byAge.remove(bitmap);
+        size -= getBytes(bitmap);
+    }
+    
+    private static Long getKey(Bitmap bitmap) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            // The largest power of two no bigger than the bitmap.
+            return Long.valueOf(63 - Long.numberOfLeadingZeros(getBytes(bitmap)));
+        } else {
+            return getExactKey(bitmap.getWidth(), bitmap.getHeight());
+        }
+    }
+    
+    private static Long getExactKey(int width, int height) {
+        return Long.valueOf(((long)width << 32) | height);
+    }
+    
+    /**
+     * Returns the amount of memory used by a bitmap's pixels.
+     * 
+     * @param bitmap the bitmap
+     * @return the size in bytes
+     */
+    public static long getBytes(Bitmap bitmap) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            return bitmap.getAllocationByteCount();
+        } else {
+            return (long)bitmap.getRowBytes() * bitmap.getHeight();
+        }
+    }
+    
+}
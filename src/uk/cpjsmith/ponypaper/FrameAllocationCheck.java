@@ -0,0 +1,121 @@
+package uk.cpjsmith.ponypaper;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Rect;
+import android.os.Debug;
+import android.util.Log;
+import java.util.concurrent.Executor;
+
+/**
+ * Checks that the steady-state frame path allocates nothing, so that the
+ * garbage collector has no cause to pause the render thread. A scene of its
+ * own is run for a number of frames on a bitmap-backed canvas, counting the
+ * allocations made by each frame with {@link Debug#getThreadAllocCount()}.
+ * Frames in which sprites were loaded, unloaded or added to the atlas are
+ * expected to allocate, so are skipped (see {@link Ponies#getChangeCount()}).
+ * An error is logged if any other frame allocated.
+ * <p>
+ * This is only run in debug builds, on the worker thread, and leaves the
+ * engines' scenes alone.
+ */
+public class FrameAllocationCheck implements Runnable {
+    
+    private static final int WIDTH = 480;
+    private static final int HEIGHT = 800;
+    /* One simulation step per frame. */
+    private static final long FRAME_NANOS = Pony.TICK_MILLIS * 1000000L;
+    /* Enough frames for the arrays kept between frames to reach full size. */
+    private static final int WARM_UP_FRAMES = 100;
+    private static final int CHECKED_FRAMES = 1000;
+    
+    /* Runs prefetches straight away, so that they are done by the time they
+     * are waited for and do not allocate queue entries mid-frame. */
+    private static final Executor DIRECT = new Executor() {
+        public void execute(Runnable r) {
+            r.run();
+        }
+    };
+    
+    private final Context context;
+    private final SharedPreferences prefs;
+    private final Rect dirtyRect = new Rect();
+    
+    /**
+     * Creates a new {@code FrameAllocationCheck}.
+     * 
+     * @param context the context to load the ponies from
+     * @param prefs   the preferences choosing the ponies
+     */
+    public FrameAllocationCheck(Context context, SharedPreferences prefs) {
+        this.context = context;
+        this.prefs = prefs;
+    }
+    
+    /**
+     * Runs the check and logs the result.
+     */
+    @Override
+    public void run() {
+        Ponies ponies;
+        try {
+            ponies = new Ponies(context, prefs, DIRECT);
+        } catch (RuntimeException e) {
+            Log.e("PonyPaper", "Error building scene for allocation check: " + e.toString());
+            return;
+        }
+        
+        Bitmap bitmap = Bitmap.createBitmap(WIDTH, HEIGHT, Bitmap.Config.ARGB_8888);
+        Canvas c = new Canvas(bitmap);
+        Rect bounds = new Rect(0, 0, WIDTH, HEIGHT);
+        float scale = Pony.getDefaultScale(bounds);
+        
+        int checked = 0;
+        int failed = 0;
+        int worst = 0;
+        try {
+            for (int i = 0; i < WARM_UP_FRAMES; i++) drawFrame(ponies, c, bounds, scale);
+            
+            Debug.startAllocCounting();
+            for (int i = 0; i < CHECKED_FRAMES; i++) {
+                int changes = ponies.getChangeCount();
+                Debug.resetThreadAllocCount();
+                drawFrame(ponies, c, bounds, scale);
+                int allocs = Debug.getThreadAllocCount();
+                if (ponies.getChangeCount() != changes) continue;
+                
+                checked++;
+                if (allocs > 0) {
+                    failed++;
+                    worst = Math.max(worst, allocs);
+                }
+            }
+        } catch (RuntimeException e) {
+            Log.e("PonyPaper", "Error running allocation check: " + e.toString());
+            return;
+        } finally {
+            Debug.stopAllocCounting();
+            ponies.release();
+            bitmap.recycle();
+        }
+        
+        if (failed > 0) {
+            Log.e("PonyPaper", "Frame path allocated in " + failed + " of " + checked + " steady-state frames, up to " + worst + " objects per frame");
+        } else {
+            Log.i("PonyPaper", "Frame path allocated nothing in " + checked + " steady-state frames");
+        }
+    }
+    
+    /**
+     * Does what the engine does for each frame.
+     */
+    private void drawFrame(Ponies ponies, Canvas c, Rect bounds, float scale) {
+        ponies.update(bounds, scale, FRAME_NANOS);
+        ponies.getDirtyBounds(dirtyRect);
+        ponies.getMillisToNextChange();
+        ponies.drawOn(c);
+    }
+    
+}
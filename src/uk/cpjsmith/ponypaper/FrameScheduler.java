@@ -0,0 +1,248 @@
+package uk.cpjsmith.ponypaper;
+
+import android.os.Build;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.view.Choreographer;
+
+/**
+ * Delivers frame callbacks at a target rate. Where available, frames are
+ * synchronised to the display using {@link Choreographer}, with the frame
+ * interval rounded to a whole number of display refreshes so that frames are
+ * evenly spaced. On older devices frames are scheduled on a {@link Handler}
+ * against a fixed timeline, so that the time taken to draw a frame does not
+ * delay the next one.
+ * <p>
+ * When nothing is expected to change for a while, the callback can ask for
+ * the next frame to be put off with {@link #delayNextFrame(long)}; the
+ * scheduler then sleeps until that time, or until {@link #wake()} is called.
+ * <p>
+ * All methods must be called on the thread of the handler passed to the
+ * constructor, and the callback is invoked on that thread.
+ */
+public class FrameScheduler {
+    
+    /**
+     * Receives the frames produced by a {@code FrameScheduler}.
+     */
+    public interface Callback {
+        
+        /**
+         * Called once per frame while the scheduler is running.
+         * 
+         * @param elapsedNanos the time since the previous frame, or {@code 0}
+         *                     for the first frame after {@link #start()}
+         */
+        void onFrame(long elapsedNanos);
+        
+    }
+    
+    private static final long NANOS_PER_SECOND = 1000000000L;
+    private static final long NANOS_PER_MILLI = 1000000L;
+    
+    private final Handler handler;
+    private final Callback callback;
+    
+    private final Runnable handlerFrame = new Runnable() {
+        public void run() {
+            doFrame(System.nanoTime());
+        }
+    };
+    private final Runnable resumeCallback = new Runnable() {
+        public void run() {
+            sleeping = false;
+            requestFrame();
+        }
+    };
+    private VsyncSource vsync = null;
+    
+    private boolean running = false;
+    private boolean sleeping = false;
+    private long nextFrameDelayNanos = 0;
+    private long frameIntervalNanos;
+    private long refreshPeriodNanos;
+    private long lastVsyncNanos = 0;
+    private long lastFrameNanos = 0;
+    private long nextFrameUptime = 0;
+    
+    /**
+     * Creates a new {@code FrameScheduler}. The scheduler is initially
+     * stopped.
+     * 
+     * @param handler     the handler on whose thread frames are delivered
+     * @param refreshRate the refresh rate of the display, in frames per
+     *                    second, used until the real rate has been measured
+     * @param callback    the callback to receive frames
+     */
+    public FrameScheduler(Handler handler, float refreshRate, Callback callback) {
+        this.handler = handler;
+        this.callback = callback;
+        this.refreshPeriodNanos = (long)(NANOS_PER_SECOND / (refreshRate > 0 ? refreshRate : 60.0f));
+        setTargetRate(25);
+    }
+    
+    /**
+     * Changes the rate at which frames are requested. The actual rate may
+     * differ slightly, as the interval between frames is rounded to a whole
+     * number of display refreshes.
+     * 
+     * @param framesPerSecond the target frame rate
+     */
+    public void setTargetRate(int framesPerSecond) {
+        frameIntervalNanos = NANOS_PER_SECOND / Math.max(1, framesPerSecond);
+    }
+    
+    /**
+     * Starts (or restarts) delivery of frames. The first frame is delivered
+     * at the next opportunity.
+     */
+    public void start() {
+        stop();
+        running = true;
+        lastFrameNanos = 0;
+        nextFrameUptime = SystemClock.uptimeMillis();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            if (vsync == null) vsync = new VsyncSource();
+        }
+        requestFrame();
+    }
+    
+    /**
+     * Stops delivery of frames.
+     */
+    public void stop() {
+        running = false;
+        sleeping = false;
+        nextFrameDelayNanos = 0;
+        if (vsync != null) vsync.remove();
+        handler.removeCallbacks(handlerFrame);
+        handler.removeCallbacks(resumeCallback);
+    }
+    
+    /**
+     * Asks for the frame after the current one to be delivered no sooner than
+     * the given time from now. This should be called from within the
+     * callback; it only affects the next frame. Delays shorter than the
+     * target frame interval have no effect.
+     * 
+     * @param delayNanos the minimum time until the next frame
+     */
+    public void delayNextFrame(long delayNanos) {
+        nextFrameDelayNanos = delayNanos;
+    }
+    
+    /**
+     * Cancels any delay requested by {@link #delayNextFrame(long)}, so that
+     * the next frame is delivered at the next opportunity. This should be
+     * called whenever something happens that might change what is drawn.
+     */
+    public void wake() {
+        if (!running || !sleeping) return;
+        handler.removeCallbacks(resumeCallback);
+        sleeping = false;
+        nextFrameUptime = SystemClock.uptimeMillis();
+        requestFrame();
+    }
+    
+    private void requestFrame() {
+        if (vsync != null) {
+            vsync.post();
+        } else {
+            handler.removeCallbacks(handlerFrame);
+            handler.postAtTime(handlerFrame, nextFrameUptime);
+        }
+    }
+    
+    /**
+     * Puts off the next frame if the callback asked for a long enough delay.
+     * 
+     * @return {@code true} if the scheduler is now sleeping
+     */
+    private boolean sleepIfRequested() {
+        long delay = nextFrameDelayNanos;
+        nextFrameDelayNanos = 0;
+        if (delay <= frameIntervalNanos) return false;
+        
+        // Wake a little early, so that the frame lands on the first vsync
+        // after the requested time rather than the one after that.
+        long delayMillis = (delay - refreshPeriodNanos / 2) / NANOS_PER_MILLI;
+        sleeping = true;
+        nextFrameUptime = SystemClock.uptimeMillis() + delayMillis;
+        handler.postAtTime(resumeCallback, nextFrameUptime);
+        return true;
+    }
+    
+    /**
+     * Returns whether frames are currently being delivered.
+     * 
+     * @return {@code true} between calls to {@link #start()} and
+     *         {@link #stop()}
+     */
+    public boolean isRunning() {
+        return running;
+    }
+    
+    private void onVsync(long frameTimeNanos) {
+        if (!running) return;
+        
+        // Track the display's real refresh period, ignoring gaps caused by
+        // missed vsyncs.
+        long delta = frameTimeNanos - lastVsyncNanos;
+        if (lastVsyncNanos != 0 && delta > 0 && delta < refreshPeriodNanos * 3 / 2) {
+            refreshPeriodNanos += (delta - refreshPeriodNanos) / 8;
+        }
+        lastVsyncNanos = frameTimeNanos;
+        
+        // Draw on every n-th refresh, allowing half a refresh of slack so that
+        // jitter in the vsync timestamps does not cause a frame to be skipped.
+        long refreshes = Math.max(1, (frameIntervalNanos + refreshPeriodNanos / 2) / refreshPeriodNanos);
+        long interval = refreshes * refreshPeriodNanos;
+        if (lastFrameNanos == 0 || frameTimeNanos - lastFrameNanos >= interval - refreshPeriodNanos / 2) {
+            doFrame(frameTimeNanos);
+            if (running && sleepIfRequested()) return;
+        }
+        
+        if (running) vsync.post();
+    }
+    
+    private void doFrame(long frameTimeNanos) {
+        if (!running) return;
+        
+        long elapsed = lastFrameNanos == 0 ? 0 : frameTimeNanos - lastFrameNanos;
+        lastFrameNanos = frameTimeNanos;
+        callback.onFrame(elapsed);
+        
+        if (running && vsync == null && !sleepIfRequested()) {
+            // Schedule against a fixed timeline rather than relative to the
+            // end of this frame, falling back into step if we overran.
+            long now = SystemClock.uptimeMillis();
+            nextFrameUptime += frameIntervalNanos / NANOS_PER_MILLI;
+            if (nextFrameUptime < now) nextFrameUptime = now;
+            handler.postAtTime(handlerFrame, nextFrameUptime);
+        }
+    }
+    
+    /**
+     * Wraps the {@link Choreographer}. This is kept in a separate class so that
+     * it is never loaded on devices that do not support it.
+     */
+    private class VsyncSource implements Choreographer.FrameCallback {
+        
+        private final Choreographer choreographer = Choreographer.getInstance();
+        
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            onVsync(frameTimeNanos);
+        }
+        
+        void post() {
+            choreographer.postFrameCallback(this);
+        }
+        
+        void remove() {
+            choreographer.removeFrameCallback(this);
+        }
+        
+    }
+    
+}
@@ -0,0 +1,112 @@
+package uk.cpjsmith.ponypaper;
+
+import android.graphics.Bitmap;
+import java.util.Arrays;
+
+/**
+ * An image stored as one byte per pixel, indexing into a palette of up to 256
+ * colours. The sprites are pixel art with few colours, so this takes a quarter
+ * of the memory of an ARGB_8888 bitmap, at the cost of having to be expanded
+ * back into a bitmap before it can be drawn.
+ */
+public class IndexedImage {
+    
+    /** The most colours a palette can hold. */
+    public static final int MAX_COLOURS = 256;
+    
+    /* The colour lookup while indexing is an open-addressed hash table four
+     * times the size of the palette, so it never gets more than a quarter
+     * full. */
+    private static final int TABLE_BITS = 10;
+    private static final int TABLE_MASK = (1 << TABLE_BITS) - 1;
+    
+    public final int width;
+    public final int height;
+    
+    private final int[] palette;
+    private final byte[] indices;
+    
+    private IndexedImage(int width, int height, int[] palette, byte[] indices) {
+        this.width = width;
+        this.height = height;
+        this.palette = palette;
+        this.indices = indices;
+    }
+    
+    /**
+     * Converts a bitmap to indexed form, if it has few enough colours.
+     * 
+     * @param bitmap the bitmap, which is not modified
+     * @return the indexed image, or {@code null} if the bitmap has more than
+     *         {@link #MAX_COLOURS} colours
+     */
+    public static IndexedImage fromBitmap(Bitmap bitmap) {
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        int[] palette = new int[MAX_COLOURS];
+        int colours = 0;
+        byte[] indices = new byte[width * height];
+        int[] tableColours = new int[1 << TABLE_BITS];
+        int[] tableIndices = new int[1 << TABLE_BITS];
+        Arrays.fill(tableIndices, -1);
+        
+        // Work a row at a time to avoid needing a copy of the whole bitmap.
+        // Pixel art has long runs of the same colour, so remember the last
+        // colour to save looking most pixels up.
+        int[] row = new int[width];
+        int lastColour = 0;
+        int lastIndex = -1;
+        for (int y = 0; y < height; y++) {
+            bitmap.getPixels(row, 0, width, 0, y, width, 1);
+            for (int x = 0; x < width; x++) {
+                int colour = row[x];
+                if (colour != lastColour || lastIndex < 0) {
+                    int slot = (colour * 0x9E3779B9) >>> (32 - TABLE_BITS);
+                    while (tableIndices[slot] >= 0 && tableColours[slot] != colour) {
+                        slot = (slot + 1) & TABLE_MASK;
+                    }
+                    if (tableIndices[slot] < 0) {
+                        if (colours == MAX_COLOURS) return null;
+                        palette[colours] = colour;
+                        tableColours[slot] = colour;
+                        tableIndices[slot] = colours++;
+                    }
+                    lastColour = colour;
+                    lastIndex = tableIndices[slot];
+                }
+                indices[y * width + x] = (byte)lastIndex;
+            }
+        }
+        
+        int[] trimmed = new int[colours];
+        System.arraycopy(palette, 0, trimmed, 0, colours);
+        return new IndexedImage(width, height, trimmed, indices);
+    }
+    
+    /**
+     * Expands the image into a bitmap, reusing one from the
+     * {@link BitmapPool} if possible.
+     * 
+     * @return the new bitmap
+     */
+    public Bitmap toBitmap() {
+        Bitmap bitmap = BitmapPool.getInstance().obtain(width, height);
+        int[] row = new int[width];
+        for (int y = 0; y < height; y++) {
+            int offset = y * width;
+            for (int x = 0; x < width; x++) row[x] = palette[indices[offset + x] & 0xFF];
+            bitmap.setPixels(row, 0, width, 0, y, width, 1);
+        }
+        return bitmap;
+    }
+    
+    /**
+     * Returns the amount of memory used by the image data.
+     * 
+     * @return the size in bytes
+     */
+    public long getSize() {
+        return indices.length + palette.length * 4;
+    }
+    
+}
@@ -0,0 +1,119 @@
+package uk.cpjsmith.ponypaper;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+
+/**
+ * A small bitmap that the scene is drawn into with sprites at their natural
+ * size, then enlarged onto the surface by a whole number in one blit. The
+ * factor is chosen so that the shorter side of the bitmap is at least 200
+ * pixels, matching the usual size of the ponies relative to the screen. As
+ * the enlargement uses nearest-neighbour sampling, every sprite pixel becomes
+ * the same size block of screen pixels.
+ */
+public class LogicalFramebuffer {
+    
+    private Bitmap buffer = null;
+    private Canvas canvas = null;
+    private int factor = 1;
+    private final Rect bounds = new Rect();
+    private final Rect dstRect = new Rect();
+    private final Matrix touchMatrix = new Matrix();
+    /* Asks for nearest-neighbour sampling explicitly, as some hardware
+     * renderers filter scaled bitmaps drawn without a paint. */
+    private final Paint scalePaint = new Paint();
+    
+    /**
+     * Creates a new {@code LogicalFramebuffer}. The buffer itself is not
+     * allocated until it is first drawn on.
+     */
+    public LogicalFramebuffer() {
+        scalePaint.setFilterBitmap(false);
+        scalePaint.setAntiAlias(false);
+    }
+    
+    /**
+     * Sets the size of the surface that the buffer will be copied to.
+     * 
+     * @param width  the width of the surface in pixels
+     * @param height the height of the surface in pixels
+     */
+    public void setSurfaceSize(int width, int height) {
+        int newFactor = Math.max(1, Math.min(width, height) / 200);
+        int w = (width + newFactor - 1) / newFactor;
+        int h = (height + newFactor - 1) / newFactor;
+        if (newFactor != factor || w != bounds.width() || h != bounds.height()) {
+            factor = newFactor;
+            bounds.set(0, 0, w, h);
+            touchMatrix.setScale(1.0f / factor, 1.0f / factor);
+            release();
+        }
+    }
+    
+    /**
+     * Returns the bounds of the buffer, which the scene should be laid out
+     * in. The returned rectangle must not be modified.
+     * 
+     * @return the bounds, with the top left corner at the origin
+     */
+    public Rect getBounds() {
+        return bounds;
+    }
+    
+    /**
+     * Returns the matrix that maps touch events from surface coordinates to
+     * buffer coordinates.
+     * 
+     * @return the matrix, which must not be modified
+     */
+    public Matrix getTouchMatrix() {
+        return touchMatrix;
+    }
+    
+    /**
+     * Returns the canvas to draw the scene on, allocating the buffer if need
+     * be. Anything drawn previously is kept.
+     * 
+     * @return the canvas
+     */
+    public Canvas getCanvas() {
+        if (buffer == null) {
+            buffer = Bitmap.createBitmap(bounds.width(), bounds.height(), Bitmap.Config.ARGB_8888);
+            canvas = new Canvas(buffer);
+        }
+        return canvas;
+    }
+    
+    /**
+     * Converts an area of the buffer to the area of the surface it covers.
+     * 
+     * @param area the area in buffer coordinates, which is modified to be in
+     *             surface coordinates
+     */
+    public void toSurface(Rect area) {
+        area.set(area.left * factor, area.top * factor, area.right * factor, area.bottom * factor);
+    }
+    
+    /**
+     * Frees the buffer. It is allocated again when next needed.
+     */
+    public void release() {
+        buffer = null;
+        canvas = null;
+    }
+    
+    /**
+     * Enlarges the buffer onto the surface.
+     * 
+     * @param c the canvas of the surface
+     */
+    public void drawOn(Canvas c) {
+        if (buffer == null) return;
+        dstRect.set(0, 0, bounds.width() * factor, bounds.height() * factor);
+        c.drawBitmap(buffer, bounds, dstRect, scalePaint);
+    }
+    
+}
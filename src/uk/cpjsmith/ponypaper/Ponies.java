@@ -7,23 +7,31 @@ import android.graphics.Point;
 import android.graphics.Rect;
 import android.view.MotionEvent;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Comparator;
+import java.util.HashSet;
 import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * Class to hold the collection of ponies and coordinate their overall motion.
  */
 public class Ponies {
     
-    private static final Comparator<Pony> compareY = new Comparator<Pony>() {
-        @Override
-        public int compare(Pony lhs, Pony rhs) {
-            int yL = lhs.getY();
-            int yR = rhs.getY();
-            return yL < yR ? -1 : yL > yR ? 1 : 0;
-        }
-    };
+    /** Memory is getting low: drop sprites that are not on screen. */
+    public static final int TRIM_MODERATE = 1;
+    /** Memory is low: also drop the copies of sprites made for drawing. */
+    public static final int TRIM_HIGH = 2;
+    /** Memory is critically low: keep only the sprites currently shown. */
+    public static final int TRIM_CRITICAL = 3;
+    
+    /* The time between simulation steps. */
+    private static final long TICK_NANOS = Pony.TICK_MILLIS * 1000000L;
+    /* Beyond this many steps in a single frame, time is dropped rather than
+     * simulated, so that a long stall does not cause a longer one. */
+    private static final int MAX_TICKS_PER_FRAME = 25;
+    /* The most steps a departed pony's replacement will be held back while its
+     * sprites finish loading, after which they are loaded on the spot. */
+    private static final int MAX_SWAP_DELAY_TICKS = 5;
     
     private int activeCount;
     
@@ -31,61 +39,476 @@ public class Ponies {
     
     private ArrayList<Pony> inactivePonies;
     private Pony[] activePonies;
+    /* Active ponies that have been disabled, and so are not to be returned to
+     * the inactive list once they have left. */
+    private final HashSet<Pony> retiringPonies = new HashSet<Pony>();
+    
+    private final Executor executor;
+    private Pony nextPony = null;
+    private SpritePrefetch nextPrefetch = null;
+    private int swapDelay = 0;
+    /* Set when memory is short, so that the prefetched sprites just freed
+     * are not decoded again straight away. Cleared at the next swap. */
+    private boolean prefetchSuspended = false;
+    private final ArrayList<SpritePrefetch> initialPrefetches = new ArrayList<SpritePrefetch>();
+    
+    private long accumulatedNanos = 0;
+    private float alpha = 0;
+    private final SpriteAtlas atlas = new SpriteAtlas();
+    private final SpriteBatch batch = new SpriteBatch();
+    private final ScaledSpriteCache scaledSprites = new ScaledSpriteCache(Runtime.getRuntime().maxMemory() / 16);
+    private boolean prescale = false;
+    private float scale = 1;
+    private final Rect vacatedBounds = new Rect();
+    private final Rect ponyBounds = new Rect();
     
     private int initialPointerId = -1;
     private Pony draggedPony = null;
+    private final Point touchPoint = new Point();
     
     /**
-     * Creates a new {@code Ponies} instance.
+     * Creates a new {@code Ponies} instance. This decodes the sprites of the
+     * ponies that will be on screen first, so it is best not called on the
+     * render thread.
      * 
-     * @param context the current application context
-     * @param prefs   the user's preferences of which ponies to load
+     * @param context  the current application context
+     * @param prefs    the user's preferences of which ponies to load
+     * @param executor the executor on which to decode the sprites of ponies
+     *                 before they come on screen
      */
-    public Ponies(Context context, SharedPreferences prefs) {
+    public Ponies(Context context, SharedPreferences prefs, Executor executor) {
         inactivePonies = AllPonies.getPonies(context, prefs);
+        this.executor = executor;
+        for (Pony pony : inactivePonies) pony.setExecutor(executor);
         
         activeCount = prefs.getInt("pref_num_ponies", 4);
-        activeCount = Math.min(inactivePonies.size(), activeCount);
         
         random = new Random();
-        activePonies = new Pony[activeCount];
-        for (int i = 0; i < activeCount; i++) {
-            int j = random.nextInt(inactivePonies.size());
-            activePonies[i] = inactivePonies.remove(j);
+        activePonies = new Pony[0];
+        fillActive();
+        
+        for (Pony pony : activePonies) {
+            SpritePrefetch prefetch = pony.createPrefetch();
+            prefetch.run();
+            initialPrefetches.add(prefetch);
         }
     }
     
     /**
-     * Resets the position of all active (on-screen) ponies.
+     * Resets the position of all active (on-screen) ponies. Any ponies that
+     * were on their way out are removed straight away.
      */
     public void reset() {
+        draggedPony = null;
+        for (int i = activePonies.length - 1; i >= 0; i--) {
+            activePonies[i].reset();
+            if (retiringPonies.remove(activePonies[i])) {
+                removeActive(i);
+            } else if (activePonies.length > activeCount) {
+                inactivePonies.add(activePonies[i]);
+                removeActive(i);
+            }
+        }
+        fillActive();
+        vacatedBounds.setEmpty();
+        scaledSprites.clear();
+    }
+    
+    /**
+     * Releases the sprites held by the active ponies. This should be called
+     * when the ponies are no longer needed, so that the sprites can be freed
+     * from the {@link SpriteCache}.
+     */
+    public void release() {
         for (Pony pony : activePonies) pony.reset();
+        releaseInitialPrefetches();
+        finishPrefetch();
+        batch.clear();
+        atlas.clear();
+        scaledSprites.clear();
+    }
+    
+    /**
+     * Frees memory in response to pressure from the system. Everything
+     * dropped is rebuilt as it is next needed, except that the next pony's
+     * sprites are not prefetched again until the current one has been
+     * replaced.
+     * 
+     * @param tier how much to free: {@link #TRIM_MODERATE},
+     *             {@link #TRIM_HIGH} or {@link #TRIM_CRITICAL}
+     */
+    public void trimMemory(int tier) {
+        releaseInitialPrefetches();
+        finishPrefetch();
+        prefetchSuspended = true;
+        for (Pony pony : inactivePonies) pony.unloadUnused();
+        atlas.trim();
+        if (tier >= TRIM_HIGH) {
+            batch.clear();
+            atlas.clear();
+            scaledSprites.clear();
+        }
+        if (tier >= TRIM_CRITICAL) {
+            for (Pony pony : activePonies) pony.unloadUnused();
+        }
+    }
+    
+    /**
+     * Returns a count of the changes to the sprites held for drawing the
+     * ponies: references to sprite sheets taken or given up, in any engine,
+     * and sheets copied into the atlas. Frames in which the count changes
+     * may allocate; others should not.
+     * 
+     * @return the count, which may wrap around
+     * @see FrameAllocationCheck
+     */
+    public int getChangeCount() {
+        return SpriteCache.getInstance().getChangeCount() + atlas.getChangeCount();
+    }
+    
+    /**
+     * Returns the number of bytes of bitmap data held for drawing the ponies,
+     * on top of their sprite sheets.
+     * 
+     * @return the size in bytes
+     */
+    public long getCacheSize() {
+        return atlas.getSize() + scaledSprites.getSize();
+    }
+    
+    /**
+     * Sets whether to draw the ponies from copies of their sprites enlarged
+     * ahead of time, when the scale is a whole number.
+     * 
+     * @param prescale {@code true} to enlarge the sprites ahead of time
+     * @see ScaledSpriteCache
+     */
+    public void setPrescale(boolean prescale) {
+        this.prescale = prescale;
+        if (!prescale) scaledSprites.clear();
+    }
+    
+    /**
+     * Adds a pony that has been enabled. It joins the active ponies if there
+     * are fewer than the requested number, or the inactive list otherwise.
+     * 
+     * @param pony the pony to add, with its key set
+     */
+    public void addPony(Pony pony) {
+        for (int i = 0; i < activePonies.length; i++) {
+            if (pony.getKey().equals(activePonies[i].getKey())) {
+                // Still on screen from before it was disabled; let it stay.
+                retiringPonies.remove(activePonies[i]);
+                return;
+            }
+        }
+        for (Pony inactive : inactivePonies) {
+            if (pony.getKey().equals(inactive.getKey())) return;
+        }
+        
+        pony.setExecutor(executor);
+        inactivePonies.add(pony);
+        fillActive();
     }
     
     /**
-     * Updates all active ponies for one frame of motion and draws them on the
-     * given canvas.
+     * Removes a pony that has been disabled. If it is on screen, it walks off
+     * before disappearing and another pony takes its place.
+     * 
+     * @param key the preference key of the pony
+     */
+    public void removePony(String key) {
+        for (int i = 0; i < inactivePonies.size(); i++) {
+            if (key.equals(inactivePonies.get(i).getKey())) {
+                if (nextPony == inactivePonies.get(i)) finishPrefetch();
+                inactivePonies.remove(i);
+                return;
+            }
+        }
+        for (int i = 0; i < activePonies.length; i++) {
+            Pony pony = activePonies[i];
+            if (key.equals(pony.getKey())) {
+                if (pony.needsInit()) {
+                    pony.reset();
+                    removeActive(i);
+                    fillActive();
+                } else {
+                    retiringPonies.add(pony);
+                    pony.leave();
+                }
+                return;
+            }
+        }
+    }
+    
+    /**
+     * Changes the number of ponies on screen at once. New ponies are brought
+     * in straight away; if there are now too many, the excess walk off.
+     * 
+     * @param count the number of active ponies
+     */
+    public void setActiveCount(int count) {
+        activeCount = count;
+        fillActive();
+        for (int i = count; i < activePonies.length; i++) {
+            if (!activePonies[i].needsInit()) activePonies[i].leave();
+        }
+        for (int i = activePonies.length - 1; i >= count; i--) {
+            if (activePonies[i].needsInit()) {
+                if (!retiringPonies.remove(activePonies[i])) inactivePonies.add(activePonies[i]);
+                removeActive(i);
+            }
+        }
+    }
+    
+    /**
+     * Moves randomly chosen inactive ponies into the active array until there
+     * are as many as requested, or no more are available.
+     */
+    private void fillActive() {
+        int count = Math.min(activeCount, activePonies.length + inactivePonies.size());
+        if (count <= activePonies.length) return;
+        
+        Pony[] newActive = new Pony[count];
+        System.arraycopy(activePonies, 0, newActive, 0, activePonies.length);
+        for (int i = activePonies.length; i < count; i++) {
+            int j = random.nextInt(inactivePonies.size());
+            newActive[i] = inactivePonies.remove(j);
+        }
+        activePonies = newActive;
+    }
+    
+    /**
+     * Chooses the pony that will replace the next one to leave, and starts
+     * decoding its sprites.
+     */
+    private void prefetchNext() {
+        if (inactivePonies.size() == 0) return;
+        
+        nextPony = inactivePonies.get(random.nextInt(inactivePonies.size()));
+        nextPrefetch = nextPony.createPrefetch();
+        try {
+            executor.execute(nextPrefetch);
+        } catch (RejectedExecutionException e) {
+            // Shutting down; the pony will load its own sprites if need be.
+            nextPony = null;
+            nextPrefetch = null;
+        }
+    }
+    
+    private void finishPrefetch() {
+        if (nextPrefetch != null) {
+            nextPrefetch.finish();
+            nextPrefetch = null;
+        }
+        nextPony = null;
+        swapDelay = 0;
+    }
+    
+    private void releaseInitialPrefetches() {
+        if (initialPrefetches.isEmpty()) return;
+        for (SpritePrefetch prefetch : initialPrefetches) prefetch.finish();
+        initialPrefetches.clear();
+    }
+    
+    /**
+     * Determines whether a departed pony can be replaced now. The
+     * replacement is held back for a few steps if its sprites are still
+     * being decoded.
+     */
+    private boolean replacementReady() {
+        if (nextPrefetch == null || nextPrefetch.isDone()) return true;
+        if (!inactivePonies.contains(nextPony)) return true; // Taken elsewhere; any pony will do.
+        if (swapDelay >= MAX_SWAP_DELAY_TICKS) return true;
+        swapDelay++;
+        return false;
+    }
+    
+    /**
+     * Removes the replacement for a departed pony from the inactive list,
+     * preferring the one whose sprites have been prefetched.
+     */
+    private Pony takeReplacement() {
+        if (nextPony != null && inactivePonies.remove(nextPony)) return nextPony;
+        return inactivePonies.remove(random.nextInt(inactivePonies.size()));
+    }
+    
+    private void removeActive(int index) {
+        Pony[] newActive = new Pony[activePonies.length - 1];
+        System.arraycopy(activePonies, 0, newActive, 0, index);
+        System.arraycopy(activePonies, index + 1, newActive, index, newActive.length - index);
+        activePonies = newActive;
+    }
+    
+    /**
+     * Advances the simulation by the given amount of real time. The
+     * simulation runs in fixed steps of {@link Pony#TICK_MILLIS}; any
+     * remainder is carried over to the next frame and used to interpolate the
+     * drawn positions.
+     * 
+     * @param bounds       the bounds of the screen
+     * @param scale        the scale factor from sprite pixels to screen
+     *                     pixels
+     * @param elapsedNanos the time since the previous frame
+     */
+    public void update(Rect bounds, float scale, long elapsedNanos) {
+        this.scale = scale;
+        accumulatedNanos += elapsedNanos;
+        if (accumulatedNanos > MAX_TICKS_PER_FRAME * TICK_NANOS) {
+            accumulatedNanos = MAX_TICKS_PER_FRAME * TICK_NANOS;
+        }
+        
+        if (nextPrefetch == null && !prefetchSuspended) prefetchNext();
+        
+        for (int i = 0; i < activePonies.length; i++) {
+            if (activePonies[i].needsInit()) activePonies[i].doUpdate(bounds, scale);
+        }
+        releaseInitialPrefetches();
+        
+        while (accumulatedNanos >= TICK_NANOS) {
+            accumulatedNanos -= TICK_NANOS;
+            update(bounds, scale);
+        }
+        
+        alpha = (float)accumulatedNanos / TICK_NANOS;
+        sortByY();
+    }
+    
+    /**
+     * Calculates the area of the screen that needs to be redrawn for the next
+     * call to {@link #drawOn(Canvas)}. This covers both where the ponies were
+     * last drawn and where they will be drawn next.
+     * 
+     * @param out the rectangle to receive the area
+     */
+    public void getDirtyBounds(Rect out) {
+        out.set(vacatedBounds);
+        for (int i = 0; i < activePonies.length; i++) {
+            out.union(activePonies[i].getDrawnBounds());
+            activePonies[i].getDrawBounds(ponyBounds, alpha);
+            out.union(ponyBounds);
+        }
+    }
+    
+    /**
+     * Estimates how long it will be before any of the ponies look different,
+     * assuming that none of them are disturbed by the user.
+     * 
+     * @return the time in milliseconds, or {@code 0} if any pony is changing
+     *         continuously
+     * @see Pony#getMillisToNextChange(float)
+     */
+    public long getMillisToNextChange() {
+        long result = Long.MAX_VALUE;
+        for (int i = 0; i < activePonies.length && result > 0; i++) {
+            if (activePonies[i].goneOffScreen()) return 0; // Waiting to be replaced.
+            result = Math.min(result, activePonies[i].getMillisToNextChange(alpha));
+        }
+        return result;
+    }
+    
+    /**
+     * Draws all active ponies on the given canvas, in their state as of the
+     * last call to {@link #update(Rect, float, long)}.
      * 
      * @param c the canvas to draw on
      */
-    public void drawAndUpdate(Canvas c) {
+    public void drawOn(Canvas c) {
+        if (prescale && scale > 1 && scale == (int)scale) {
+            scaledSprites.setFactor((int)scale);
+            scaledSprites.beginFrame();
+            for (int i = 0; i < activePonies.length; i++) {
+                activePonies[i].drawOn(c, alpha, scaledSprites);
+            }
+            vacatedBounds.setEmpty();
+            return;
+        }
+        
+        atlas.beginFrame();
+        for (int i = 0; i < activePonies.length; i++) {
+            activePonies[i].useAtlas(atlas);
+        }
+        atlas.endFrame();
+        
+        if (!SpriteBatch.isSupported(c) || !drawBatched(c)) {
+            for (int i = 0; i < activePonies.length; i++) {
+                activePonies[i].drawOn(c, alpha, atlas);
+            }
+        }
+        vacatedBounds.setEmpty();
+    }
+    
+    /**
+     * Draws all of the active ponies with a single draw call, if all of their
+     * sprites are on the same atlas page. The ponies are already sorted, so
+     * the batch is too.
+     * 
+     * @return {@code true} if the ponies were drawn
+     */
+    private boolean drawBatched(Canvas c) {
+        batch.begin();
+        for (int i = 0; i < activePonies.length; i++) {
+            if (!activePonies[i].addToBatch(batch, alpha, atlas)) return false;
+        }
+        batch.drawOn(c, atlas);
+        return true;
+    }
+    
+    /**
+     * Sorts the active ponies so that those higher up the screen are drawn
+     * first. An insertion sort is used as the order rarely changes much from
+     * one frame to the next, and it needs no temporary storage.
+     */
+    private void sortByY() {
+        for (int i = 1; i < activePonies.length; i++) {
+            Pony pony = activePonies[i];
+            int y = pony.getY();
+            int j = i - 1;
+            while (j >= 0 && activePonies[j].getY() > y) {
+                activePonies[j + 1] = activePonies[j];
+                j--;
+            }
+            activePonies[j + 1] = pony;
+        }
+    }
+    
+    private void update(Rect bounds, float scale) {
         for (int i = 0; i < activePonies.length; i++) {
-            activePonies[i].doUpdate(c.getClipBounds());
+            // A departed pony waiting for its replacement stays where it is.
+            if (!activePonies[i].goneOffScreen()) activePonies[i].doUpdate(bounds, scale);
             if (activePonies[i].goneOffScreen()) {
                 Pony temp = activePonies[i];
+                boolean retired = retiringPonies.contains(temp);
+                
+                if (activePonies.length > activeCount || (retired && inactivePonies.size() == 0)) {
+                    // There is no place for a replacement, so the slot goes.
+                    vacatedBounds.union(temp.getDrawnBounds());
+                    temp.reset();
+                    retiringPonies.remove(temp);
+                    if (!retired) inactivePonies.add(temp);
+                    removeActive(i);
+                    i--;
+                    continue;
+                }
+                
+                if (inactivePonies.size() != 0 && !replacementReady()) continue;
+                
+                vacatedBounds.union(temp.getDrawnBounds());
                 temp.reset();
+                retiringPonies.remove(temp);
                 if (inactivePonies.size() != 0) {
-                    int j = random.nextInt(inactivePonies.size());
-                    activePonies[i] = inactivePonies.remove(j);
-                    inactivePonies.add(temp);
+                    activePonies[i] = takeReplacement();
+                    if (!retired) inactivePonies.add(temp);
                 }
-                activePonies[i].doUpdate(c.getClipBounds());
+                activePonies[i].doUpdate(bounds, scale);
+                
+                // The new pony now holds its own sprites, so start on the
+                // one after.
+                finishPrefetch();
+                prefetchSuspended = false;
+                prefetchNext();
             }
         }
-        Arrays.sort(activePonies, compareY);
-        for (int i = 0; i < activePonies.length; i++) {
-            activePonies[i].drawOn(c);
-        }
     }
     
     /**
@@ -119,7 +542,8 @@ public class Ponies {
                 
             case MotionEvent.ACTION_MOVE:
                 if (draggedPony != null) {
-                    draggedPony.moveTo(new Point(Math.round(event.getX()), Math.round(event.getY())));
+                    touchPoint.set(Math.round(event.getX()), Math.round(event.getY()));
+                    draggedPony.moveTo(touchPoint);
                 }
                 break;
                 
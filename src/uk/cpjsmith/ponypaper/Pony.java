@@ -4,6 +4,8 @@ import android.graphics.Canvas;
 import android.graphics.Point;
 import android.graphics.Rect;
 import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * Represents the current status of a pony. This class must be subclassed to
@@ -12,6 +14,15 @@ import java.util.Random;
  */
 public class Pony {
     
+    /**
+     * The length of one simulation step, in milliseconds. Each call to
+     * {@link #doUpdate(Rect, float)} advances the pony by this much time.
+     */
+    public static final int TICK_MILLIS = 40;
+    
+    /* Animation times are measured in hundredths of a second. */
+    private static final int TICK_TIME = TICK_MILLIS / 10;
+    
     private static final int MOTION_INIT = 0;
     private static final int MOTION_WAITING = 1;
     private static final int MOTION_MOVING = 2;
@@ -22,22 +33,37 @@ public class Pony {
     private static final int LM_GOING = 1;
     private static final int LM_GONE = 2;
     
+    /* Actions that have not been shown for this many steps are unloaded. */
+    private static final int EVICT_AFTER_TICKS = 250;
+    private static final int EVICT_CHECK_TICKS = 25;
+    
     private final PonyAction[] allActions;
     private final PonyAction[] startActions;
+    private String key = null;
+    
+    private Executor executor = null;
+    private SpritePrefetch warmUp = null;
+    private final int[] lastUsedTick;
+    private int tickCount = 0;
     
     private Random random;
-    private Point targetPos;
+    private final Point targetPos = new Point();
     private int waitTimer;
     
     private int motion;
     private int leavingMode;
+    private boolean dismissed;
     
     private PonyAction currentAction;
-    private Point currentPos;
+    private final Point currentPos = new Point();
+    private final Point previousPos = new Point();
+    private final Point drawPos = new Point();
     private int direction;
     private int frameTime = 0;
     
     private Rect screenBounds;
+    private float scale = 1;
+    private final Rect drawnBounds = new Rect();
     
     /**
      * Creates a new {@code Pony} object.
@@ -48,10 +74,41 @@ public class Pony {
     public Pony(PonyAction[] allActions, PonyAction[] startActions) {
         this.allActions = allActions;
         this.startActions = startActions;
+        this.lastUsedTick = new int[allActions.length];
         this.random = new Random();
         this.direction = random.nextBoolean() ? PonyAction.LEFT : PonyAction.RIGHT;
     }
     
+    /**
+     * Sets the preference key that enables this pony, so that it can be found
+     * again if the preference changes.
+     * 
+     * @param key the preference key
+     */
+    public void setKey(String key) {
+        this.key = key;
+    }
+    
+    /**
+     * Returns the preference key that enables this pony.
+     * 
+     * @return the key, or {@code null} if none has been set
+     */
+    public String getKey() {
+        return key;
+    }
+    
+    /**
+     * Sets the executor on which the sprites of the actions that might follow
+     * the current one are decoded. Without one, each action's sprites are
+     * only loaded when it starts.
+     * 
+     * @param executor the executor for background work
+     */
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+    
     /**
      * Clears the current state of the pony.
      */
@@ -59,35 +116,81 @@ public class Pony {
         waitTimer = 0;
         motion = MOTION_INIT;
         leavingMode = LM_NORMAL;
+        dismissed = false;
         currentAction = null;
-        currentPos = null;
         frameTime = 0;
+        drawnBounds.setEmpty();
+        if (warmUp != null) {
+            warmUp.finish();
+            warmUp = null;
+        }
         for (int i = 0; i < allActions.length; i++) {
             allActions[i].unload();
         }
     }
     
     /**
-     * Causes the state of the pony to be updated for the next frame.
+     * Unloads the sprites of every action except the one currently shown,
+     * and abandons any warm-up of the next actions. The sprites are loaded
+     * again as they are needed.
+     */
+    public void unloadUnused() {
+        if (warmUp != null) {
+            warmUp.finish();
+            warmUp = null;
+        }
+        for (int i = 0; i < allActions.length; i++) {
+            if (allActions[i] != currentAction) allActions[i].unload();
+        }
+    }
+    
+    /**
+     * Creates a prefetch for the sprites the pony may enter the scene with,
+     * so that they can be decoded ahead of time. The prefetch does not modify
+     * the pony, so it may be run on any thread.
+     * 
+     * @return the prefetch, not yet started
+     */
+    public SpritePrefetch createPrefetch() {
+        return new SpritePrefetch(startActions);
+    }
+    
+    /**
+     * Determines whether the pony needs to be placed on the screen by a call
+     * to {@link #doUpdate(Rect, float)} before it can be drawn.
+     * 
+     * @return {@code true} if the pony has not yet entered the scene
+     */
+    public boolean needsInit() {
+        return motion == MOTION_INIT;
+    }
+    
+    /**
+     * Causes the state of the pony to be updated by one simulation step of
+     * {@link #TICK_MILLIS} milliseconds. If the pony has not yet entered the
+     * scene, it is placed off screen without advancing time.
      * 
      * @param clipBounds the bounds of the screen that the pony will be
      *                   positioned on
+     * @param scale      the scale factor from sprite pixels to screen pixels,
+     *                   normally {@link #getDefaultScale(Rect)}
      */
-    public void doUpdate(Rect clipBounds) {
+    public void doUpdate(Rect clipBounds, float scale) {
         screenBounds = clipBounds;
-        
-        float scale = getScale();
+        this.scale = scale;
         
         if (motion == MOTION_INIT) {
-            for (int i = 0; i < allActions.length; i++) {
-                allActions[i].load();
-            }
-            currentPos = randomOffScreen();
+            randomOffScreen(currentPos);
+            previousPos.set(currentPos.x, currentPos.y);
             changeAction(startActions[random.nextInt(startActions.length)]);
             motion = currentAction.type == PonyAction.NORMAL ? MOTION_MOVING : MOTION_SPECIAL;
             setRandomTarget();
         } else {
-            frameTime += 4;
+            tickCount++;
+            if (tickCount % EVICT_CHECK_TICKS == 0) evictUnused();
+            
+            previousPos.set(currentPos.x, currentPos.y);
+            frameTime += TICK_TIME;
             if (frameTime >= currentAction.getAnimationTime(direction)) {
                 frameTime -= currentAction.getAnimationTime(direction);
                 switch (currentAction.type) {
@@ -121,8 +224,132 @@ public class Pony {
         }
     }
     
-    public void drawOn(Canvas c) {
-        currentAction.drawOn(c, direction, frameTime, currentPos, getScale(), motion == MOTION_DRAGGED);
+    /**
+     * Draws the pony. The position and animation are interpolated between the
+     * previous and current simulation steps, so that motion appears smooth
+     * when frames do not line up with steps.
+     * 
+     * @param c     the canvas to draw on
+     * @param alpha the fraction of a step that has elapsed since the last
+     *              call to {@link #doUpdate(Rect, float)}, between {@code 0} and
+     *              {@code 1}
+     * @param atlas the atlas holding the pony's sprites, or {@code null}
+     */
+    public void drawOn(Canvas c, float alpha, SpriteAtlas atlas) {
+        Point pos = getDrawPosition(alpha);
+        currentAction.drawOn(c, direction, getDrawTime(alpha), pos, getScale(), motion == MOTION_DRAGGED, atlas);
+        currentAction.getDrawBounds(direction, pos, getScale(), motion == MOTION_DRAGGED, drawnBounds);
+    }
+    
+    /**
+     * Draws the pony from sprites enlarged ahead of time, as an alternative
+     * to {@link #drawOn(Canvas, float, SpriteAtlas)}. The pony's scale must
+     * be the cache's factor.
+     * 
+     * @param c      the canvas to draw on
+     * @param alpha  the fraction of a step that has elapsed since the last
+     *               call to {@link #doUpdate(Rect, float)}
+     * @param scaled the cache of enlarged sprites
+     */
+    public void drawOn(Canvas c, float alpha, ScaledSpriteCache scaled) {
+        Point pos = getDrawPosition(alpha);
+        currentAction.drawOn(c, direction, getDrawTime(alpha), pos, getScale(), motion == MOTION_DRAGGED, scaled);
+        currentAction.getDrawBounds(direction, pos, getScale(), motion == MOTION_DRAGGED, drawnBounds);
+    }
+    
+    /**
+     * Adds the pony to a batch of sprites to be drawn together, as an
+     * alternative to {@link #drawOn(Canvas, float, SpriteAtlas)}.
+     * 
+     * @param batch the batch to add to
+     * @param alpha the fraction of a step that has elapsed since the last
+     *              call to {@link #doUpdate(Rect, float)}
+     * @param atlas the atlas holding the pony's sprites
+     * @return {@code true} if the pony was added, or {@code false} if it
+     *         must be drawn on its own
+     */
+    public boolean addToBatch(SpriteBatch batch, float alpha, SpriteAtlas atlas) {
+        Point pos = getDrawPosition(alpha);
+        boolean dragged = motion == MOTION_DRAGGED;
+        if (!currentAction.addToBatch(batch, direction, getDrawTime(alpha), pos, getScale(), dragged, atlas)) {
+            return false;
+        }
+        currentAction.getDrawBounds(direction, pos, getScale(), dragged, drawnBounds);
+        return true;
+    }
+    
+    /**
+     * Notes the sprites that the pony is about to be drawn with in an atlas.
+     * 
+     * @param atlas the atlas
+     * @see SpriteAtlas#use(SpriteSheet)
+     */
+    public void useAtlas(SpriteAtlas atlas) {
+        currentAction.useAtlas(direction, atlas);
+    }
+    
+    /**
+     * Estimates how long it will be before the pony looks any different,
+     * assuming that it is not disturbed by the user. This is the earliest of
+     * the next change of animation frame and the end of any wait.
+     * 
+     * @param alpha the interpolation factor that was last used for drawing
+     * @return the time in milliseconds, or {@code 0} if the pony is moving
+     *         and so changes on every step
+     */
+    public long getMillisToNextChange(float alpha) {
+        if (motion == MOTION_INIT || motion == MOTION_MOVING) return 0;
+        
+        int time = getDrawTime(alpha);
+        long result = currentAction.getTimeToNextFrame(direction, time) * 10L;
+        if (motion == MOTION_WAITING) {
+            // The wait ends on the step after the timer reaches zero.
+            long waitMillis = (long)((waitTimer + 1 - alpha) * TICK_MILLIS);
+            result = Math.min(result, waitMillis);
+        }
+        return Math.max(result, 0);
+    }
+    
+    /**
+     * Calculates the area of the screen that the pony would cover if it were
+     * drawn now with {@link #drawOn(Canvas, float, SpriteAtlas)}.
+     * 
+     * @param out   the rectangle to receive the bounds
+     * @param alpha the interpolation factor that will be used for drawing
+     */
+    public void getDrawBounds(Rect out, float alpha) {
+        currentAction.getDrawBounds(direction, getDrawPosition(alpha), getScale(), motion == MOTION_DRAGGED, out);
+    }
+    
+    /**
+     * Returns the area of the screen that the pony covered when it was last
+     * drawn. The returned rectangle is owned by the pony and must not be
+     * modified.
+     * 
+     * @return the bounds, or an empty rectangle if the pony has not been
+     *         drawn since it was last reset
+     */
+    public Rect getDrawnBounds() {
+        return drawnBounds;
+    }
+    
+    private int getDrawTime(float alpha) {
+        int animationTime = currentAction.getAnimationTime(direction);
+        int time = frameTime + (int)(alpha * TICK_TIME);
+        if (time >= animationTime) {
+            // Teleports play only once, so must not wrap back to the start.
+            time = currentAction.type == PonyAction.NORMAL ? time % animationTime : animationTime - 1;
+        }
+        return time;
+    }
+    
+    private Point getDrawPosition(float alpha) {
+        if (motion == MOTION_DRAGGED || previousPos.equals(currentPos.x, currentPos.y)) {
+            return currentPos;
+        }
+        drawPos.set(Math.round(previousPos.x + (currentPos.x - previousPos.x) * alpha),
+                    Math.round(previousPos.y + (currentPos.y - previousPos.y) * alpha));
+        return drawPos;
     }
     
     /**
@@ -147,13 +374,16 @@ public class Pony {
     
     /**
      * Tests whether a click at the given screen point should be considered to
-     * be a click on the pony.
+     * be a click on the pony. A pony that has not yet entered the scene
+     * (see {@link #needsInit()}) is never hit, as it has no position or
+     * action to be dragged from.
      * 
      * @param x the x-coordinate of the click
      * @param y the y-coordinate of the click
      * @return {@code true} iff the point is on top of this pony
      */
     public boolean testHitPoint(float x, float y) {
+        if (motion == MOTION_INIT) return false;
         float ponySize = 30 * getScale();
         
         float dX = x - currentPos.x;
@@ -170,7 +400,6 @@ public class Pony {
      */
     public void startDrag() {
         motion = MOTION_DRAGGED;
-        targetPos = null;
         leavingMode = LM_NORMAL;
         setDragged();
     }
@@ -183,15 +412,17 @@ public class Pony {
     public void stopDrag() {
         int s = (int)(30 * getScale());
         
-        if (currentPos.x < screenBounds.left + s) {
+        if (dismissed) {
+            leave();
+        } else if (currentPos.x < screenBounds.left + s) {
             motion = MOTION_MOVING;
             leavingMode = LM_GOING;
-            targetPos = new Point(screenBounds.left - s, currentPos.y);
+            targetPos.set(screenBounds.left - s, currentPos.y);
             setMoving();
         } else if (currentPos.x >= screenBounds.right - s) {
             motion = MOTION_MOVING;
             leavingMode = LM_GOING;
-            targetPos = new Point(screenBounds.right + s, currentPos.y);
+            targetPos.set(screenBounds.right + s, currentPos.y);
             setMoving();
         } else {
             motion = MOTION_WAITING;
@@ -201,13 +432,32 @@ public class Pony {
     }
     
     /**
-     * Moves the pony to a position.
+     * Sends the pony off the nearest side of the screen, after which
+     * {@link #goneOffScreen()} will return {@code true}. A pony being dragged
+     * leaves once it is let go. This must not be called before the pony has
+     * entered the scene (see {@link #needsInit()}).
+     */
+    public void leave() {
+        dismissed = true;
+        if (motion == MOTION_DRAGGED) return;
+        
+        int s = (int)(30 * getScale());
+        leavingMode = LM_GOING;
+        targetPos.set(currentPos.x < screenBounds.centerX() ? screenBounds.left - s : screenBounds.right + s,
+                      currentPos.y);
+        setMoving();
+        motion = currentAction.type == PonyAction.NORMAL ? MOTION_MOVING : MOTION_SPECIAL;
+    }
+    
+    /**
+     * Moves the pony to a position. The given point is copied, not retained.
      * 
      * @param pos the new position for the pony
      */
     public void moveTo(Point pos) {
         setDirection(pos);
-        currentPos = pos;
+        currentPos.set(pos.x, pos.y);
+        previousPos.set(pos.x, pos.y);
     }
     
     private void setWaiting() {
@@ -224,14 +474,67 @@ public class Pony {
     
     private void changeAction(PonyAction newAction) {
         if (newAction != currentAction) {
+            if (currentAction != null) markUsed(currentAction);
+            newAction.load();
             currentAction = newAction;
             frameTime = 0;
+            warmUpSuccessors();
+        }
+    }
+    
+    /**
+     * Starts decoding the sprites of the actions that could follow the
+     * current one, so that they are ready by the time they are needed.
+     */
+    private void warmUpSuccessors() {
+        SpritePrefetch previous = warmUp;
+        warmUp = null;
+        // Whichever of the previous successors was chosen has loaded its own
+        // sprites by now.
+        if (previous != null) previous.finish();
+        if (executor == null) return;
+        
+        // Successors that are already loaded just gain another reference for
+        // a while, which is cheaper than building a list of the others.
+        PonyAction[] successors = currentAction.getSuccessors();
+        boolean needed = false;
+        for (int i = 0; i < successors.length && !needed; i++) {
+            if (!successors[i].isLoaded()) needed = true;
+        }
+        if (!needed) return;
+        
+        // The previous prefetch has almost always run by now, so can be
+        // reused.
+        if (previous != null && previous.restart(successors)) {
+            warmUp = previous;
+        } else {
+            warmUp = new SpritePrefetch(successors);
+        }
+        try {
+            executor.execute(warmUp);
+        } catch (RejectedExecutionException e) {
+            warmUp = null;
+        }
+    }
+    
+    private void markUsed(PonyAction action) {
+        for (int i = 0; i < allActions.length; i++) {
+            if (allActions[i] == action) lastUsedTick[i] = tickCount;
+        }
+    }
+    
+    /**
+     * Unloads the sprites of actions that have not been shown for a while.
+     */
+    private void evictUnused() {
+        markUsed(currentAction);
+        for (int i = 0; i < allActions.length; i++) {
+            if (tickCount - lastUsedTick[i] > EVICT_AFTER_TICKS) allActions[i].unload();
         }
     }
     
     private void arriveTarget() {
         motion = MOTION_WAITING;
-        targetPos = null;
         waitTimer = 25 + random.nextInt(250);
         if (leavingMode == LM_GOING) leavingMode = LM_GONE;
     }
@@ -239,16 +542,16 @@ public class Pony {
     private void setRandomTarget() {
         if (random.nextInt(8) < 1) {
             if (motion == MOTION_MOVING) {
-                targetPos = randomOffScreenHoriz();
+                randomOffScreenHoriz(targetPos);
             } else {
-                targetPos = randomOffScreen();
+                randomOffScreen(targetPos);
             }
             leavingMode = LM_GOING;
         } else {
             if (motion == MOTION_MOVING) {
-                targetPos = randomOnScreenHoriz();
+                randomOnScreenHoriz(targetPos);
             } else {
-                targetPos = randomOnScreen();
+                randomOnScreen(targetPos);
             }
         }
     }
@@ -265,7 +568,7 @@ public class Pony {
         int dY = targetPos.y - currentPos.y;
         float f = speed / (float)Math.sqrt(dX * dX + dY * dY);
         if (f >= 1) {
-            currentPos = targetPos;
+            currentPos.set(targetPos.x, targetPos.y);
             arriveTarget();
             setWaiting();
         } else {
@@ -275,63 +578,70 @@ public class Pony {
     }
     
     private float getScale() {
-        return Math.min(screenBounds.width(), screenBounds.height()) / 200.0f;
+        return scale;
+    }
+    
+    /**
+     * Returns the scale at which ponies are normally drawn on a screen, such
+     * that its shorter side is 200 sprite pixels long.
+     * 
+     * @param bounds the bounds of the screen
+     * @return the scale factor from sprite pixels to screen pixels
+     */
+    public static float getDefaultScale(Rect bounds) {
+        return Math.min(bounds.width(), bounds.height()) / 200.0f;
     }
     
     /**
      * Chooses a random point on the screen.
      * 
-     * @return the chosen point
+     * @param out the point to receive the result
      */
-    private Point randomOnScreen() {
+    private void randomOnScreen(Point out) {
         int s = (int)(30 * getScale());
-        return new Point(screenBounds.left + s + random.nextInt(screenBounds.width() - 2*s),
-                         screenBounds.top + s + random.nextInt(screenBounds.height() - 2*s));
+        out.set(screenBounds.left + s + random.nextInt(screenBounds.width() - 2*s),
+                screenBounds.top + s + random.nextInt(screenBounds.height() - 2*s));
     }
     
     /**
      * Chooses a random point on the screen, restricted to areas roughly
      * horizontal with the current position.
      * 
-     * @return the chosen point
+     * @param out the point to receive the result
      */
-    private Point randomOnScreenHoriz() {
-        Point newPoint = null;
+    private void randomOnScreenHoriz(Point out) {
         for (int i = 0; i < 100; i++) {
-            newPoint = randomOnScreen();
-            if (Math.abs(newPoint.y - currentPos.y) < Math.abs(newPoint.x - currentPos.x)) {
+            randomOnScreen(out);
+            if (Math.abs(out.y - currentPos.y) < Math.abs(out.x - currentPos.x)) {
                 break;
             }
         }
-        return newPoint;
     }
     
     /**
      * Chooses a random point just to the side of the screen.
      * 
-     * @return the chosen point
+     * @param out the point to receive the result
      */
-    private Point randomOffScreen() {
+    private void randomOffScreen(Point out) {
         int s = (int)(30 * getScale());
-        return new Point(random.nextBoolean() ? screenBounds.left - s : screenBounds.right + s,
-                         screenBounds.top + s + random.nextInt(screenBounds.height() - 2*s));
+        out.set(random.nextBoolean() ? screenBounds.left - s : screenBounds.right + s,
+                screenBounds.top + s + random.nextInt(screenBounds.height() - 2*s));
     }
     
     /**
      * Chooses a random point just to the side of the screen, restricted to
      * areas roughly horizontal with the current position.
      * 
-     * @return the chosen point
+     * @param out the point to receive the result
      */
-    private Point randomOffScreenHoriz() {
-        Point newPoint = null;
+    private void randomOffScreenHoriz(Point out) {
         for (int i = 0; i < 100; i++) {
-            newPoint = randomOffScreen();
-            if (Math.abs(newPoint.y - currentPos.y) < Math.abs(newPoint.x - currentPos.x)) {
+            randomOffScreen(out);
+            if (Math.abs(out.y - currentPos.y) < Math.abs(out.x - currentPos.x)) {
                 break;
             }
         }
-        return newPoint;
     }
     
     private void setDirection(Point targetPos) {
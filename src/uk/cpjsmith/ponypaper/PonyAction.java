@@ -2,11 +2,13 @@ package uk.cpjsmith.ponypaper;
 
 import android.content.res.Resources;
 import android.content.res.TypedArray;
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Point;
 import android.graphics.Rect;
 import android.graphics.RectF;
-import android.util.Base64;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
 
 /**
@@ -16,6 +18,10 @@ import java.util.Random;
  * are not immediately loaded and the {@link #getAnimationTime} and {@link
  * #drawOn} methods will fail with {@code NullPointerException} until the
  * {@link #load} method is called.
+ * <p>
+ * When one direction is the mirror image of the other, either as declared by
+ * a custom pony or as found by the {@link SpriteCache}, only one sheet is
+ * loaded and it is drawn flipped for the other direction.
  */
 public class PonyAction {
     
@@ -54,10 +60,21 @@ public class PonyAction {
     private PonyDefinition.Action definition;
     
     private SpriteSheet[] sprites;
+    /* The direction drawn by flipping the other direction's sheet, or -1. */
+    private int mirroredDir = -1;
+    /* The frame last drawn, where the search for the next one starts. */
+    private int lastFrame = 0;
     
     private PonyAction[] nextWaiting;
     private PonyAction[] nextMoving;
     private PonyAction[] nextDrag;
+    /* Worked out from the above when first needed. */
+    private PonyAction[] successors = null;
+    
+    /* Reused on every frame, to avoid allocation while drawing. */
+    private final Rect srcRect = new Rect();
+    private final RectF dstRect = new RectF();
+    private final Rect trimRect = new Rect();
     
     /**
      * Constructs an action of type {@code NORMAL}.
@@ -106,61 +123,285 @@ public class PonyAction {
         unload();
     }
     
-    private static int[] parseInts(String value) {
-        String[] array = value.split(",");
-        int[] result = new int[array.length];
-        for (int i = 0; i < array.length; i++) {
-            result[i] = Integer.parseInt(array[i]);
-        }
-        return result;
-    }
-    
     /**
      * Load the sprites into memory. After this is called, all the methods of
-     * this class become functional. It will also consume far more memory.
+     * this class become functional. It will also consume far more memory,
+     * unless the sprites are already in use elsewhere. Calling this when the
+     * sprites are already loaded has no effect.
      * 
      * @see #unload()
+     * @see SpriteCache
      */
     public void load() {
-        if (res != null) {
-            TypedArray array = res.obtainTypedArray(arrayId);
-            
-            int leftDrawableId = array.getResourceId(0, 0);
-            int leftTimingId = array.getResourceId(1, 0);
-            int rightDrawableId = array.getResourceId(2, 0);
-            int rightTimingId = array.getResourceId(3, 0);
-            
-            sprites = new SpriteSheet[] {
-                new SpriteSheet(res, leftDrawableId, leftTimingId),
-                new SpriteSheet(res, rightDrawableId, rightTimingId)
-            };
-            
-            array.recycle();
-        } else if (definition != null) {
-            sprites = new SpriteSheet[] {
-                new SpriteSheet(Base64.decode(definition.images.get("left"), 0),
-                                parseInts(definition.timings.get("left"))),
-                new SpriteSheet(Base64.decode(definition.images.get("right"), 0),
-                                parseInts(definition.timings.get("right")))
-            };
+        if (sprites != null) return;
+        
+        ArrayList<SpriteSheet> sheets = new ArrayList<SpriteSheet>(2);
+        acquireSprites(sheets);
+        sprites = sheets.toArray(new SpriteSheet[2]);
+        if (sprites[LEFT] != sprites[RIGHT]) {
+            mirroredDir = -1;
+        } else if (definition != null && definition.mirror.equals("left")) {
+            mirroredDir = LEFT;
+        } else {
+            mirroredDir = RIGHT;
+        }
+    }
+    
+    /**
+     * Obtains the left and right sprite sheets from the {@link SpriteCache},
+     * decoding them if necessary, without loading them into this action. The
+     * caller must release them again. This does not modify the action, so it
+     * may be called from any thread. If one direction is the mirror image of
+     * the other, the same sheet is added twice.
+     * 
+     * @param out the list to append the sheets to, left first
+     */
+    public void acquireSprites(List<SpriteSheet> out) {
+        SpriteCache cache = SpriteCache.getInstance();
+        int start = out.size();
+        try {
+            if (res != null) {
+                TypedArray array = res.obtainTypedArray(arrayId);
+                
+                int leftDrawableId = array.getResourceId(0, 0);
+                int leftTimingId = array.getResourceId(1, 0);
+                int rightDrawableId = array.getResourceId(2, 0);
+                int rightTimingId = array.getResourceId(3, 0);
+                
+                array.recycle();
+                
+                out.add(cache.acquire(res, leftDrawableId, leftTimingId, LEFT));
+                out.add(cache.acquire(res, rightDrawableId, rightTimingId, RIGHT));
+                shareMirrored(cache, out, start);
+            } else if (definition != null) {
+                if (definition.mirror.equals("left")) {
+                    SpriteSheet right = cache.acquire(definition.images.get("right"), definition.timings.get("right"), RIGHT);
+                    out.add(right);
+                    out.add(cache.retain(right));
+                } else if (definition.mirror.equals("right")) {
+                    SpriteSheet left = cache.acquire(definition.images.get("left"), definition.timings.get("left"), LEFT);
+                    out.add(left);
+                    out.add(cache.retain(left));
+                } else {
+                    out.add(cache.acquire(definition.images.get("left"), definition.timings.get("left"), LEFT));
+                    out.add(cache.acquire(definition.images.get("right"), definition.timings.get("right"), RIGHT));
+                    shareMirrored(cache, out, start);
+                }
+            }
+        } catch (RuntimeException e) {
+            while (out.size() > start) cache.release(out.remove(out.size() - 1));
+            throw e;
+        }
+    }
+    
+    /**
+     * Replaces the right sheet with the left one if it is just the left one
+     * flipped, so that only one is kept in memory.
+     */
+    private static void shareMirrored(SpriteCache cache, List<SpriteSheet> out, int start) {
+        SpriteSheet left = out.get(start);
+        SpriteSheet right = out.get(start + 1);
+        if (left != right && cache.checkMirror(left, right)) {
+            out.set(start + 1, cache.retain(left));
+            cache.release(right);
         }
     }
     
     /**
      * Unload the sprites from memory. This will release the memory consumed by
-     * the images, but some methods of this class will cease to function.
+     * the images (once no other action is using them), but some methods of
+     * this class will cease to function.
      * 
      * @see #load()
      */
     public void unload() {
+        if (sprites == null) return;
+        
+        SpriteCache cache = SpriteCache.getInstance();
+        for (SpriteSheet sheet : sprites) cache.release(sheet);
         sprites = null;
     }
     
+    /**
+     * Determines whether the sprites are loaded.
+     * 
+     * @return {@code true} between calls to {@link #load()} and
+     *         {@link #unload()}
+     */
+    public boolean isLoaded() {
+        return sprites != null;
+    }
+    
+    /**
+     * Returns the actions that could follow this one, whether waiting, moving
+     * or being dragged. Each action is listed once. The list is only worked
+     * out on the first call, so that changing action does not allocate.
+     * 
+     * @return the actions, which must not be modified
+     */
+    public PonyAction[] getSuccessors() {
+        if (successors == null) {
+            ArrayList<PonyAction> out = new ArrayList<PonyAction>();
+            PonyAction[][] all = { nextWaiting, nextMoving, nextDrag };
+            for (PonyAction[] next : all) {
+                if (next == null) continue;
+                for (PonyAction action : next) {
+                    if (action != this && !out.contains(action)) out.add(action);
+                }
+            }
+            successors = out.toArray(new PonyAction[out.size()]);
+        }
+        return successors;
+    }
+    
     public int getAnimationTime(int dir) {
         return sprites[dir].totalTime;
     }
     
-    public void drawOn(Canvas c, int dir, int time, Point p, float scale, boolean dragged) {
+    public int getTimeToNextFrame(int dir, int time) {
+        return sprites[dir].getTimeToNextFrame(time);
+    }
+    
+    /**
+     * Draws the frame of the action's animation for the given time.
+     * 
+     * @param c       the canvas to draw on
+     * @param dir     the direction the pony is facing
+     * @param time    the time since the start of the animation
+     * @param p       the position of the pony
+     * @param scale   the scale factor from sprite pixels to screen pixels
+     * @param dragged whether the pony is being dragged
+     * @param atlas   the atlas to draw the frame from if it is there, or
+     *                {@code null} to always draw from the sprite sheet
+     */
+    public void drawOn(Canvas c, int dir, int time, Point p, float scale, boolean dragged, SpriteAtlas atlas) {
+        SpriteSheet sprite = sprites[dir];
+        int frame = getFrame(sprite, time);
+        boolean mirrored = dir == mirroredDir;
+        getDestination(dir, p, scale, dragged, dstRect);
+        trimDestination(sprite, frame, scale, mirrored, dstRect);
+        int page = atlas == null ? -1 : atlas.getFrame(sprite, frame, srcRect);
+        if (mirrored) {
+            c.save();
+            c.scale(-1, 1, dstRect.centerX(), 0);
+        }
+        if (page >= 0) {
+            c.drawBitmap(atlas.getPage(page), srcRect, dstRect, null);
+        } else {
+            sprite.getFrameRect(frame, srcRect);
+            c.drawBitmap(sprite.bitmap, srcRect, dstRect, null);
+        }
+        if (mirrored) c.restore();
+    }
+    
+    /**
+     * Draws the frame of the action's animation for the given time, from a
+     * copy enlarged ahead of time so that it can be drawn without scaling.
+     * If the enlarged frame is not available, it is drawn from the sprite
+     * sheet as usual.
+     * 
+     * @param c       the canvas to draw on
+     * @param dir     the direction the pony is facing
+     * @param time    the time since the start of the animation
+     * @param p       the position of the pony
+     * @param scale   the scale factor from sprite pixels to screen pixels,
+     *                which must be the factor of {@code scaled}
+     * @param dragged whether the pony is being dragged
+     * @param scaled  the cache of enlarged frames
+     */
+    public void drawOn(Canvas c, int dir, int time, Point p, float scale, boolean dragged, ScaledSpriteCache scaled) {
+        SpriteSheet sprite = sprites[dir];
+        int frameIndex = getFrame(sprite, time);
+        Bitmap frame = scaled.getFrame(sprite, frameIndex);
+        if (frame == null) {
+            drawOn(c, dir, time, p, scale, dragged, (SpriteAtlas)null);
+            return;
+        }
+        
+        // Line the frame up with whole pixels, so that it is copied exactly.
+        boolean mirrored = dir == mirroredDir;
+        getDestination(dir, p, scale, dragged, dstRect);
+        trimDestination(sprite, frameIndex, scale, mirrored, dstRect);
+        int left = Math.round(dstRect.left);
+        int top = Math.round(dstRect.top);
+        if (mirrored) {
+            c.save();
+            c.scale(-1, 1, left + frame.getWidth() / 2.0f, 0);
+        }
+        c.drawBitmap(frame, left, top, null);
+        if (mirrored) c.restore();
+    }
+    
+    /**
+     * Adds the frame that {@link #drawOn} would draw to a batch, if it can be
+     * drawn from the atlas.
+     * 
+     * @param batch   the batch to add to
+     * @param dir     the direction the pony is facing
+     * @param time    the time since the start of the animation
+     * @param p       the position of the pony
+     * @param scale   the scale factor from sprite pixels to screen pixels
+     * @param dragged whether the pony is being dragged
+     * @param atlas   the atlas the batch draws from
+     * @return {@code true} if the frame was added, or {@code false} if it
+     *         must be drawn separately
+     */
+    public boolean addToBatch(SpriteBatch batch, int dir, int time, Point p, float scale, boolean dragged, SpriteAtlas atlas) {
+        SpriteSheet sprite = sprites[dir];
+        int frame = getFrame(sprite, time);
+        int page = atlas.getFrame(sprite, frame, srcRect);
+        if (page < 0) return false;
+        boolean mirrored = dir == mirroredDir;
+        getDestination(dir, p, scale, dragged, dstRect);
+        trimDestination(sprite, frame, scale, mirrored, dstRect);
+        return batch.add(page, srcRect, dstRect, mirrored);
+    }
+    
+    /**
+     * Adds the sprite sheet for a direction to an atlas, so that it can be
+     * drawn from there.
+     * 
+     * @param dir   the direction the pony is facing
+     * @param atlas the atlas
+     * @see SpriteAtlas#use(SpriteSheet)
+     */
+    public void useAtlas(int dir, SpriteAtlas atlas) {
+        atlas.use(sprites[dir]);
+    }
+    
+    /**
+     * Calculates the area of the screen that would be covered by a call to
+     * {@link #drawOn} with the same arguments.
+     * 
+     * @param dir     the direction the pony is facing
+     * @param p       the position of the pony
+     * @param scale   the scale factor from sprite pixels to screen pixels
+     * @param dragged whether the pony is being dragged
+     * @param out     the rectangle to receive the bounds, rounded outwards to
+     *                whole pixels
+     */
+    public void getDrawBounds(int dir, Point p, float scale, boolean dragged, Rect out) {
+        getDestination(dir, p, scale, dragged, dstRect);
+        dstRect.roundOut(out);
+    }
+    
+    private int getFrame(SpriteSheet sprite, int time) {
+        lastFrame = sprite.getFrame(time, lastFrame);
+        return lastFrame;
+    }
+    
+    /**
+     * Shrinks the destination of a whole frame to the part covered by the
+     * frame's trimmed image, flipping its position if the frame is mirrored.
+     */
+    private void trimDestination(SpriteSheet sprite, int frame, float scale, boolean mirrored, RectF dst) {
+        sprite.getFrameTrim(frame, trimRect);
+        int left = mirrored ? sprite.frameWidth - trimRect.right : trimRect.left;
+        dst.set(dst.left + left * scale, dst.top + trimRect.top * scale,
+                dst.left + (left + trimRect.width()) * scale, dst.top + trimRect.bottom * scale);
+    }
+    
+    private void getDestination(int dir, Point p, float scale, boolean dragged, RectF out) {
         SpriteSheet sprite = sprites[dir];
         
         int sW = sprite.frameWidth;
@@ -168,26 +409,28 @@ public class PonyAction {
         float dW = sW * scale;
         float dH = sH * scale;
         
+        float x = p.x;
+        float y = p.y;
         if (dragged) {
-            p = new Point(p);
-            p.y -= dH/2 + 20 * scale;
+            y = (int)(y - (dH/2 + 20 * scale));
         }
         
-        RectF dstRect = new RectF(p.x - dW/2, p.y - dH/2, p.x + dW/2, p.y + dH/2);
-        
-        c.drawBitmap(sprite.bitmap, sprite.getRect(time), dstRect, null);
+        out.set(x - dW/2, y - dH/2, x + dW/2, y + dH/2);
     }
     
     public void setNextWaiting(PonyAction[] states) {
         nextWaiting = states;
+        successors = null;
     }
     
     public void setNextMoving(PonyAction[] states) {
         nextMoving = states;
+        successors = null;
     }
     
     public void setNextDrag(PonyAction[] states) {
         nextDrag = states;
+        successors = null;
     }
     
     public PonyAction getNextWaiting(Random random) {
@@ -29,6 +29,8 @@ public class PonyDefinition {
         
         public String name;
         public String specialType;
+        /* The direction drawn by mirroring the other one, if any. */
+        public String mirror;
         public final Map<String, String> images = new HashMap<String, String>();
         public final Map<String, String> timings = new HashMap<String, String>();
         public final Map<String, String> nextActions = new HashMap<String, String>();
@@ -36,6 +38,7 @@ public class PonyDefinition {
         public Action() {
             name = "";
             specialType = "";
+            mirror = "";
             images.put("left", "");
             timings.put("left", "");
             images.put("right", "");
@@ -60,6 +63,8 @@ public class PonyDefinition {
                         String nodeName = node.getNodeName();
                         if (nodeName.equals("specialtype")) {
                             addSpecialType((Element)node, errors);
+                        } else if (nodeName.equals("mirror")) {
+                            addMirror((Element)node, errors);
                         } else if (nodeName.equals("image")) {
                             addImage((Element)node, errors);
                         } else if (nodeName.equals("timings")) {
@@ -90,6 +95,7 @@ public class PonyDefinition {
             if (!errors.isEmpty()) throw new InvalidPonyException(errors);
             
             if (specialType == null) specialType = "";
+            if (mirror == null) mirror = "";
             if (!images.containsKey("left")) images.put("left", "");
             if (!timings.containsKey("left")) timings.put("left", "");
             if (!images.containsKey("right")) images.put("right", "");
@@ -107,6 +113,14 @@ public class PonyDefinition {
             specialType = getContent(element, errors).replaceAll("\\s+", "");
         }
         
+        private void addMirror(Element element, List<String> errors) {
+            if (mirror != null) {
+                errors.add("Too many <mirror> elements.");
+                return;
+            }
+            mirror = getContent(element, errors).replaceAll("\\s+", "");
+        }
+        
         private void addImage(Element element, List<String> errors) {
             String direction = element.getAttribute("direction");
             if (!(direction.equals("left") || direction.equals("right"))) {
@@ -284,17 +298,27 @@ public class PonyDefinition {
                 errors.add("Invalid specialtype for " + name + ".");
             }
             
-            if (action.images.get("left").isEmpty()) {
-                errors.add("Missing left image for " + name + ".");
+            String mirror = action.mirror;
+            if (!(mirror.equals("") || mirror.equals("left") || mirror.equals("right"))) {
+                errors.add("Invalid mirror for " + name + ".");
             }
             
-            validateIntegerList(action.timings.get("left"), "left timings for ", name, errors);
-            
-            if (action.images.get("right").isEmpty()) {
-                errors.add("Missing right image for " + name + ".");
+            // The mirrored direction needs no image of its own.
+            if (!mirror.equals("left")) {
+                if (action.images.get("left").isEmpty()) {
+                    errors.add("Missing left image for " + name + ".");
+                }
+                
+                validateIntegerList(action.timings.get("left"), "left timings for ", name, errors);
             }
             
-            validateIntegerList(action.timings.get("right"), "right timings for ", name, errors);
+            if (!mirror.equals("right")) {
+                if (action.images.get("right").isEmpty()) {
+                    errors.add("Missing right image for " + name + ".");
+                }
+                
+                validateIntegerList(action.timings.get("right"), "right timings for ", name, errors);
+            }
             
             validateActionList(action.nextActions.get("waiting"), "waiting actions for ", name, errors);
             validateActionList(action.nextActions.get("moving"), "moving actions for ", name, errors);
@@ -344,21 +368,31 @@ public class PonyDefinition {
                 writer.println("</specialtype>");
             }
             
-            writer.println("        <image direction=\"left\">");
-            writeSplit(writer, action.images.get("left"), "            ");
-            writer.println("        </image>");
-            
-            writer.print("        <timings direction=\"left\">");
-            writeCharacters(writer, action.timings.get("left"));
-            writer.println("</timings>");
+            if (!action.mirror.isEmpty()) {
+                writer.print("        <mirror>");
+                writeCharacters(writer, action.mirror);
+                writer.println("</mirror>");
+            }
             
-            writer.println("        <image direction=\"right\">");
-            writeSplit(writer, action.images.get("right"), "            ");
-            writer.println("        </image>");
+            if (!action.mirror.equals("left")) {
+                writer.println("        <image direction=\"left\">");
+                writeSplit(writer, action.images.get("left"), "            ");
+                writer.println("        </image>");
+                
+                writer.print("        <timings direction=\"left\">");
+                writeCharacters(writer, action.timings.get("left"));
+                writer.println("</timings>");
+            }
             
-            writer.print("        <timings direction=\"right\">");
-            writeCharacters(writer, action.timings.get("right"));
-            writer.println("</timings>");
+            if (!action.mirror.equals("right")) {
+                writer.println("        <image direction=\"right\">");
+                writeSplit(writer, action.images.get("right"), "            ");
+                writer.println("        </image>");
+                
+                writer.print("        <timings direction=\"right\">");
+                writeCharacters(writer, action.timings.get("right"));
+                writer.println("</timings>");
+            }
             
             writer.print("        <nextactions type=\"waiting\">");
             writeCharacters(writer, action.nextActions.get("waiting"));
@@ -2,163 +2,718 @@ package uk.cpjsmith.ponypaper;
 
 import android.content.SharedPreferences;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
-import android.graphics.Paint;
 import android.graphics.Rect;
-import android.graphics.RectF;
+import android.os.Build;
 import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
 import android.preference.PreferenceManager;
 import android.service.wallpaper.WallpaperService;
+import android.util.Log;
 import android.view.MotionEvent;
 import android.view.SurfaceHolder;
+import android.view.WindowManager;
 import java.io.File;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 public class PonyWallpaper extends WallpaperService {
     
+    /**
+     * The wallpaper engine. Each engine renders on its own thread; the
+     * callbacks from the framework, which arrive on the main thread, are
+     * passed to the render thread as messages so that all of the engine's
+     * state is only ever touched by the render thread.
+     */
     private class PonyEngine extends Engine implements SharedPreferences.OnSharedPreferenceChangeListener {
         
+        /* The longest the engine will sleep while the ponies are idle. */
+        private static final long MAX_SLEEP_MILLIS = 1000;
+        
         private Ponies ponies = null;
-        private Bitmap background = null;
+        private boolean sceneStale = true;
+        private boolean scenePending = false;
+        private int sceneGeneration = 0;
+        private final BackgroundCompositor background = new BackgroundCompositor();
         private float xOffset = 0.5f;
         private float yOffset = 0.5f;
         private boolean drunkMode = false;
-        private Paint paint = null;
-        private int backgroundColour = 0;
-        private int initFrameCount = 0;
+        private final TrailBuffer trail = new TrailBuffer();
+        private boolean lowRes = false;
+        private final LogicalFramebuffer logical = new LogicalFramebuffer();
+        private boolean useHardwareCanvas = false;
+        private boolean lockedHardwareCanvas = false;
+        /* Set once the hardware canvas has failed on this engine, after which
+         * it is never tried again. */
+        private boolean hardwareFailed = false;
+        private String renderer = null;
+        private boolean partialRedraw = false;
+        private boolean adaptiveRate = false;
+        private boolean prescale = false;
+        private boolean fullRedraw = true;
+        private final Rect surfaceFrame = new Rect();
+        /* The area the scene is laid out in; smaller than the surface in
+         * low resolution mode. */
+        private final Rect sceneFrame = new Rect();
+        private final Rect dirtyRect = new Rect();
         
         private boolean isVisible = false;
-        private final Runnable drawFrameCallback = new Runnable() {
-            public void run() {
-                drawFrame();
-            }
-        };
+        /* Set on the main thread when the engine is destroyed, under the
+         * engine's lock, so that the worker knows not to hand over scenes
+         * that the render thread will never receive. */
+        private boolean destroyed = false;
+        private final HandlerThread renderThread;
+        private final Handler handler;
+        private final FrameScheduler scheduler;
         
         private PonyEngine() {
-            getPreferences().registerOnSharedPreferenceChangeListener(this);
-            paint = new Paint();
+            SharedPreferences prefs = getPreferences();
+            prefs.registerOnSharedPreferenceChangeListener(this);
+            lowRes = prefs.getBoolean("pref_low_res", false);
+            
+            renderThread = new HandlerThread("PonyPaper render", Process.THREAD_PRIORITY_DISPLAY);
+            renderThread.start();
+            handler = new Handler(renderThread.getLooper());
+            
+            float refreshRate = ((WindowManager)getSystemService(WINDOW_SERVICE)).getDefaultDisplay().getRefreshRate();
+            scheduler = new FrameScheduler(handler, refreshRate, new FrameScheduler.Callback() {
+                public void onFrame(long elapsedNanos) {
+                    drawFrame(elapsedNanos);
+                }
+            });
+            scheduler.setTargetRate(getFrameRate(prefs));
+        }
+        
+        /**
+         * Chooses between the hardware and software canvas according to the
+         * user's preference and what the device supports. Once the hardware
+         * canvas has failed, the software canvas is always used.
+         */
+        private void updateRenderer(SharedPreferences prefs) {
+            if (hardwareFailed) return;
+            boolean hardware = Build.VERSION.SDK_INT >= Build.VERSION_CODES.O
+                               && prefs.getString("pref_renderer", "hardware").equals("hardware");
+            if (hardware != useHardwareCanvas || renderer == null) {
+                useHardwareCanvas = hardware;
+                setRenderer(hardware ? "hardware canvas" : "software canvas");
+            }
+        }
+        
+        private void setRenderer(String renderer) {
+            this.renderer = renderer;
+            setRendererStatus(renderer);
+        }
+        
+        /**
+         * Locks the surface for drawing. If {@code dirty} is given, only that
+         * area needs to be redrawn; the rest of the surface keeps the contents
+         * of the previous frame.
+         */
+        private Canvas lockCanvas(SurfaceHolder holder, Rect dirty) {
+            if (useHardwareCanvas) {
+                try {
+                    Canvas c = holder.getSurface().lockHardwareCanvas();
+                    lockedHardwareCanvas = true;
+                    return c;
+                } catch (RuntimeException e) {
+                    Log.e("PonyPaper", "Hardware canvas unavailable: " + e.toString());
+                    useHardwareCanvas = false;
+                    hardwareFailed = true;
+                    setRenderer("software canvas (hardware canvas failed)");
+                }
+            }
+            lockedHardwareCanvas = false;
+            return dirty != null ? holder.lockCanvas(dirty) : holder.lockCanvas();
+        }
+        
+        private void unlockCanvasAndPost(SurfaceHolder holder, Canvas c) {
+            if (lockedHardwareCanvas) {
+                holder.getSurface().unlockCanvasAndPost(c);
+            } else {
+                holder.unlockCanvasAndPost(c);
+            }
         }
         
         private SharedPreferences getPreferences() {
             return PreferenceManager.getDefaultSharedPreferences(PonyWallpaper.this);
         }
         
+        private int getFrameRate(SharedPreferences prefs) {
+            try {
+                return Integer.parseInt(prefs.getString("pref_frame_rate", "25"));
+            } catch (NumberFormatException e) {
+                return 25;
+            }
+        }
+        
+        /**
+         * Runs a task on the render thread and waits for it to complete. This
+         * is used where the framework requires the work to be finished before
+         * the callback returns, e.g. to stop drawing on a destroyed surface.
+         */
+        private void runAndWait(final Runnable task) {
+            final CountDownLatch done = new CountDownLatch(1);
+            boolean posted = handler.post(new Runnable() {
+                public void run() {
+                    try {
+                        task.run();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+            if (!posted) return; // The render thread has already exited.
+            
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    done.await();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+        
         @Override
-        public void onSharedPreferenceChanged(SharedPreferences prefs, String key) {
-            ponies = null;
+        public void onSharedPreferenceChanged(final SharedPreferences prefs, final String key) {
+            handler.post(new Runnable() {
+                public void run() {
+                    scheduler.wake();
+                    if (key.equals("pref_frame_rate")) {
+                        scheduler.setTargetRate(getFrameRate(prefs));
+                        return;
+                    }
+                    if (key.equals("pref_renderer")) {
+                        updateRenderer(prefs);
+                        fullRedraw = true;
+                        return;
+                    }
+                    if (key.equals("pref_adaptive_rate")) {
+                        adaptiveRate = prefs.getBoolean("pref_adaptive_rate", true);
+                        return;
+                    }
+                    if (key.equals("pref_prescale")) {
+                        prescale = prefs.getBoolean("pref_prescale", false);
+                        if (ponies != null) ponies.setPrescale(prescale);
+                        fullRedraw = true;
+                        return;
+                    }
+                    if (key.equals("pref_partial_redraw")) {
+                        partialRedraw = prefs.getBoolean("pref_partial_redraw", true);
+                        fullRedraw = true;
+                        return;
+                    }
+                    if (key.equals("pref_trail_length")) {
+                        trail.setLength(prefs.getInt("pref_trail_length", 4));
+                        return;
+                    }
+                    if (key.equals("pref_low_res")) {
+                        lowRes = prefs.getBoolean("pref_low_res", false);
+                        updateSceneFrame();
+                        requestBackground();
+                        return;
+                    }
+                    if (ponies == null || scenePending) {
+                        // The scene being built may not have seen this
+                        // change, so start again.
+                        sceneStale = true;
+                        return;
+                    }
+                    if (key.equals("pref_num_ponies")) {
+                        ponies.setActiveCount(prefs.getInt("pref_num_ponies", 4));
+                        return;
+                    }
+                    if (AllPonies.isPonyKey(key)) {
+                        if (prefs.getBoolean(key, true)) {
+                            requestPony(key);
+                        } else {
+                            ponies.removePony(key);
+                        }
+                        return;
+                    }
+                    if (key.equals("pref_background") || key.equals("pref_select_background") || key.equals("pref_pixelation")) {
+                        requestBackground();
+                        return;
+                    }
+                    if (key.equals("pref_drunk_mode")) {
+                        setDrunkMode(prefs);
+                        return;
+                    }
+                    sceneStale = true;
+                }
+            });
         }
         
         @Override
         public void onDestroy() {
             super.onDestroy();
-            handler.removeCallbacks(drawFrameCallback);
+            getPreferences().unregisterOnSharedPreferenceChangeListener(this);
+            engines.remove(this);
+            synchronized (this) {
+                destroyed = true;
+            }
+            handler.post(new Runnable() {
+                public void run() {
+                    scheduler.stop();
+                    if (ponies != null) ponies.release();
+                    renderThread.quit();
+                }
+            });
         }
         
         @Override
-        public void onVisibilityChanged(boolean visible) {
-            isVisible = visible;
-            if (visible) drawFrame();
-            else handler.removeCallbacks(drawFrameCallback);
+        public void onVisibilityChanged(final boolean visible) {
+            handler.post(new Runnable() {
+                public void run() {
+                    isVisible = visible;
+                    if (visible) scheduler.start();
+                    else scheduler.stop();
+                }
+            });
         }
         
         @Override
-        public void onOffsetsChanged(float xOffset, float yOffset, float xOffsetStep, float yOffsetStep, int xPixelOffset, int yPixelOffset) {
-            this.xOffset = xOffset;
-            this.yOffset = yOffset;
+        public void onOffsetsChanged(final float xOffset, final float yOffset, float xOffsetStep, float yOffsetStep, int xPixelOffset, int yPixelOffset) {
+            handler.post(new Runnable() {
+                public void run() {
+                    if (xOffset != PonyEngine.this.xOffset || yOffset != PonyEngine.this.yOffset) {
+                        PonyEngine.this.xOffset = xOffset;
+                        PonyEngine.this.yOffset = yOffset;
+                        background.setOffsets(xOffset, yOffset);
+                        fullRedraw = true;
+                        scheduler.wake();
+                    }
+                }
+            });
         }
         
         @Override
-        public void onSurfaceChanged(SurfaceHolder holder, int format, int width, int height) {
+        public void onSurfaceChanged(SurfaceHolder holder, int format, final int width, final int height) {
             super.onSurfaceChanged(holder, format, width, height);
-            if (ponies != null) ponies.reset();
-            if (drunkMode) {
-                initFrameCount = 0;
-                backgroundColour = 0xff333333;
-                paint.setAlpha(0xff);
-            }
-            drawFrame();
+            runAndWait(new Runnable() {
+                public void run() {
+                    surfaceFrame.set(0, 0, width, height);
+                    updateSceneFrame();
+                    drawFrame(0);
+                    if (isVisible) scheduler.start();
+                }
+            });
         }
         
         @Override
         public void onSurfaceDestroyed(SurfaceHolder holder) {
             super.onSurfaceDestroyed(holder);
-            isVisible = false;
-            handler.removeCallbacks(drawFrameCallback);
+            runAndWait(new Runnable() {
+                public void run() {
+                    isVisible = false;
+                    scheduler.stop();
+                }
+            });
         }
         
         @Override
         public void onTouchEvent(MotionEvent event) {
-            if (ponies != null) ponies.onTouchEvent(event);
+            // The framework recycles the event once we return, so hand a copy
+            // to the render thread.
+            final MotionEvent copy = MotionEvent.obtain(event);
+            handler.post(new Runnable() {
+                public void run() {
+                    if (lowRes) copy.transform(logical.getTouchMatrix());
+                    if (ponies != null) ponies.onTouchEvent(copy);
+                    copy.recycle();
+                    scheduler.wake();
+                }
+            });
+        }
+        
+        /**
+         * Starts building a new set of ponies and background on the worker
+         * thread. The current scene carries on being drawn in the meantime,
+         * and is replaced once the new one is ready. If the preferences change
+         * again before then, the older build is discarded.
+         */
+        private void requestScene() {
+            final int generation = ++sceneGeneration;
+            scenePending = true;
+            final int width = sceneFrame.width();
+            final int height = sceneFrame.height();
+            worker.execute(new Runnable() {
+                public void run() {
+                    final Ponies newPonies;
+                    final Bitmap image;
+                    try {
+                        SharedPreferences prefs = getPreferences();
+                        newPonies = new Ponies(PonyWallpaper.this, prefs, worker);
+                        image = decodeBackground(prefs, width, height);
+                    } catch (RuntimeException e) {
+                        Log.e("PonyPaper", "Error building scene: " + e.toString());
+                        return;
+                    }
+                    
+                    // Once the engine is destroyed the render thread quits, so
+                    // anything posted afterwards would never be released.
+                    synchronized (PonyEngine.this) {
+                        if (!destroyed) {
+                            handler.post(new Runnable() {
+                                public void run() {
+                                    if (generation == sceneGeneration) {
+                                        setScene(newPonies, image);
+                                    } else {
+                                        newPonies.release();
+                                    }
+                                }
+                            });
+                            return;
+                        }
+                    }
+                    newPonies.release();
+                }
+            });
+        }
+        
+        /**
+         * Loads a single pony that has just been enabled on the worker thread,
+         * and adds it to the current scene once it is ready.
+         */
+        private void requestPony(final String key) {
+            final Ponies target = ponies;
+            worker.execute(new Runnable() {
+                public void run() {
+                    final Pony pony;
+                    try {
+                        pony = AllPonies.makePony(PonyWallpaper.this, key);
+                    } catch (RuntimeException e) {
+                        Log.e("PonyPaper", "Error loading " + key + ": " + e.toString());
+                        return;
+                    }
+                    if (pony == null) return;
+                    
+                    handler.post(new Runnable() {
+                        public void run() {
+                            // Only add it if it is still wanted.
+                            if (ponies == target && getPreferences().getBoolean(key, true)) {
+                                ponies.addPony(pony);
+                                scheduler.wake();
+                            }
+                        }
+                    });
+                }
+            });
         }
         
-        private void drawFrame() {
+        /**
+         * Decodes the background image again on the worker thread, leaving the
+         * ponies alone. The worker runs tasks in order, so the newest request
+         * is always the last to be applied.
+         */
+        private void requestBackground() {
+            final int width = sceneFrame.width();
+            final int height = sceneFrame.height();
+            worker.execute(new Runnable() {
+                public void run() {
+                    final Bitmap image;
+                    try {
+                        image = decodeBackground(getPreferences(), width, height);
+                    } catch (RuntimeException e) {
+                        Log.e("PonyPaper", "Error loading background: " + e.toString());
+                        return;
+                    }
+                    
+                    handler.post(new Runnable() {
+                        public void run() {
+                            background.setImage(image);
+                            fullRedraw = true;
+                            scheduler.wake();
+                        }
+                    });
+                }
+            });
+        }
+        
+        /**
+         * Decodes the background image selected by the user, if any. This is
+         * slow, so should be called on the worker thread.
+         */
+        private Bitmap decodeBackground(SharedPreferences prefs, int width, int height) {
+            if (!prefs.getBoolean("pref_background", false)) return null;
+            File bgFile = new File(getExternalFilesDir(null), "background");
+            if (!bgFile.exists()) return null;
+            return BackgroundCompositor.decode(bgFile, width, height, prefs.getInt("pref_pixelation", 1));
+        }
+        
+        private void setScene(Ponies newPonies, Bitmap image) {
+            SharedPreferences prefs = getPreferences();
+            if (ponies != null) ponies.release();
+            ponies = newPonies;
+            scenePending = false;
+            background.setImage(image);
+            
+            partialRedraw = prefs.getBoolean("pref_partial_redraw", true);
+            adaptiveRate = prefs.getBoolean("pref_adaptive_rate", true);
+            prescale = prefs.getBoolean("pref_prescale", false);
+            ponies.setPrescale(prescale);
+            updateRenderer(prefs);
+            setDrunkMode(prefs);
+            scheduler.wake();
+        }
+        
+        /**
+         * Switches Berry Punch mode on or off according to the preferences,
+         * starting again without any trails.
+         */
+        private void setDrunkMode(SharedPreferences prefs) {
+            drunkMode = prefs.getBoolean("pref_drunk_mode", false);
+            trail.setLength(prefs.getInt("pref_trail_length", 4));
+            if (drunkMode) {
+                trail.clear();
+            } else {
+                trail.release();
+            }
+            fullRedraw = true;
+        }
+        
+        /**
+         * Lays the scene out to fit the surface, at the size of the surface
+         * or of the low resolution buffer. The ponies start again, as their
+         * positions no longer mean the same thing.
+         */
+        private void updateSceneFrame() {
+            if (lowRes) {
+                logical.setSurfaceSize(surfaceFrame.width(), surfaceFrame.height());
+                sceneFrame.set(logical.getBounds());
+            } else {
+                logical.release();
+                sceneFrame.set(surfaceFrame);
+            }
+            background.setSize(sceneFrame.width(), sceneFrame.height());
+            trail.setSize(sceneFrame.width(), sceneFrame.height());
+            fullRedraw = true;
+            if (ponies != null) ponies.reset();
+        }
+        
+        private void drawFrame(long elapsedNanos) {
             final SurfaceHolder holder = getSurfaceHolder();
+            if (surfaceFrame.isEmpty()) return; // No surface to draw on yet.
+            
+            if (sceneStale) {
+                sceneStale = false;
+                requestScene();
+            }
             
             Canvas c = null;
             try {
-                c = holder.lockCanvas();
-                if (ponies == null) {
-                    SharedPreferences prefs = getPreferences();
-                    ponies = new Ponies(PonyWallpaper.this, prefs);
+                Rect dirty = null;
+                if (ponies != null) {
+                    ponies.update(sceneFrame, getScale(), elapsedNanos);
                     
-                    background = null;
-                    drunkMode = prefs.getBoolean("pref_drunk_mode", false);
-                    initFrameCount = 0;
-                    backgroundColour = 0xff333333;
-                    paint.setAlpha(0xff);
-                    if (prefs.getBoolean("pref_background", false)) {
-                        File bgFile = new File(getExternalFilesDir(null), "background");
-                        if (bgFile.exists()) {
-                            BitmapFactory.Options bfo = new BitmapFactory.Options();
-                            bfo.inScaled = false;
-                            bfo.inJustDecodeBounds = true;
-                            BitmapFactory.decodeFile(bgFile.toString(), bfo);
-                            int h = bfo.outHeight, w = bfo.outWidth;
-                            int scale = Math.min(h / c.getHeight(), w / c.getWidth());
-                            scale *= prefs.getInt("pref_pixelation", 1);
-                            bfo.inJustDecodeBounds = false;
-                            bfo.inSampleSize = scale;
-                            background = BitmapFactory.decodeFile(bgFile.toString(), bfo);
-                        }
+                    // When the ponies are standing still, sleep until one of
+                    // them next changes. Berry Punch mode fades the old frames
+                    // on every frame, so never sleeps.
+                    if (adaptiveRate && !drunkMode) {
+                        long sleepMillis = Math.min(ponies.getMillisToNextChange(), MAX_SLEEP_MILLIS);
+                        scheduler.delayNextFrame(sleepMillis * 1000000L);
+                    }
+                    
+                    // Berry Punch mode fades the whole screen on every frame,
+                    // and the hardware canvas needs every pixel to be drawn.
+                    if (partialRedraw && !fullRedraw && !drunkMode && !useHardwareCanvas) {
+                        ponies.getDirtyBounds(dirtyRect);
+                        if (dirtyRect.isEmpty()) return; // Nothing on screen has changed.
+                        dirty = dirtyRect;
                     }
+                } else {
+                    // Still waiting for the first scene; there is nothing to
+                    // draw beyond the plain background.
+                    scheduler.delayNextFrame(MAX_SLEEP_MILLIS * 1000000L);
+                    if (!fullRedraw) return;
+                }
+                
+                if (drunkMode) {
+                    Canvas trailCanvas = trail.beginFrame(background);
+                    if (ponies != null) ponies.drawOn(trailCanvas);
                 }
-                if (drunkMode && initFrameCount <= 3 && initFrameCount++ == 3) {
-                    backgroundColour = 0x33333333;
-                    paint.setAlpha(0x33);
+                
+                if (lowRes) {
+                    // Draw the scene at its natural size, then enlarge the
+                    // part that changed in one go.
+                    Canvas logicalCanvas = logical.getCanvas();
+                    logicalCanvas.save();
+                    if (dirty != null) logicalCanvas.clipRect(dirty);
+                    drawScene(logicalCanvas);
+                    logicalCanvas.restore();
+                    if (dirty != null) logical.toSurface(dirty);
                 }
+                
+                c = lockCanvas(holder, dirty);
                 if (c != null) {
-                    if (background != null) {
-                        Rect srcRect = new Rect(0, 0, background.getWidth(), background.getHeight());
-                        Rect cb = c.getClipBounds();
-                        float scale = Math.max((float)cb.height() / (float)srcRect.height(),
-                                               (float)cb.width() / (float)srcRect.width());
-                        RectF dstRect = new RectF((cb.width() - srcRect.width() * scale) * xOffset,
-                                                  (cb.height() - srcRect.height() * scale) * yOffset,
-                                                  (cb.width() - srcRect.width() * scale) * xOffset + srcRect.width() * scale,
-                                                  (cb.height() - srcRect.height() * scale) * yOffset + srcRect.height() * scale);
-                        c.drawBitmap(background, srcRect, dstRect, paint);
+                    if (lowRes) {
+                        logical.drawOn(c);
                     } else {
-                        c.drawColor(backgroundColour);
+                        drawScene(c);
                     }
-                    ponies.drawAndUpdate(c);
+                    fullRedraw = false;
                 }
             } finally {
-                if (c != null) holder.unlockCanvasAndPost(c);
+                if (c != null) unlockCanvasAndPost(holder, c);
             }
-            
-            // Reschedule the next redraw
-            handler.removeCallbacks(drawFrameCallback);
-            if (isVisible) handler.postDelayed(drawFrameCallback, 1000 / 25);
+        }
+        
+        /**
+         * Returns the scale to draw the ponies at. Enlarging the sprites
+         * ahead of time needs a whole number, so the usual scale is rounded.
+         */
+        private float getScale() {
+            if (lowRes) return 1;
+            float scale = Pony.getDefaultScale(sceneFrame);
+            return prescale ? Math.max(1, Math.round(scale)) : scale;
+        }
+        
+        private void drawScene(Canvas c) {
+            if (drunkMode) {
+                trail.drawOn(c);
+            } else {
+                background.drawOn(c, null);
+                if (ponies != null) ponies.drawOn(c);
+            }
+        }
+        
+        /**
+         * Frees memory in response to pressure from the system, along with
+         * whatever the shared caches no longer need, and logs how much was
+         * freed. Everything dropped is rebuilt as it is next needed.
+         * 
+         * @param tier one of the {@code TRIM_} constants in {@link Ponies}
+         */
+        private void trimMemory(final int tier) {
+            handler.post(new Runnable() {
+                public void run() {
+                    SpriteCache sprites = SpriteCache.getInstance();
+                    BitmapPool pool = BitmapPool.getInstance();
+                    String before = describeCaches(sprites, pool);
+                    
+                    if (ponies != null) ponies.trimMemory(tier);
+                    sprites.trimTo(0);
+                    if (tier >= Ponies.TRIM_HIGH) {
+                        pool.clear();
+                        background.release();
+                        fullRedraw = true;
+                    }
+                    if (tier >= Ponies.TRIM_CRITICAL) {
+                        trail.release();
+                        logical.release();
+                    }
+                    
+                    Log.i("PonyPaper", "Trimmed memory (tier " + tier + "): " + before + " -> " + describeCaches(sprites, pool));
+                }
+            });
+        }
+        
+        private String describeCaches(SpriteCache sprites, BitmapPool pool) {
+            long drawing = ponies == null ? 0 : ponies.getCacheSize();
+            return "sprites " + sprites.getSize() / 1024 + "K, pool " + pool.getSize() / 1024 + "K, drawing " + drawing / 1024 + "K";
         }
         
     }
     
-    private final Handler handler = new Handler();
+    /* The engines that are running, so that they can be asked to free memory.
+     * Only touched on the main thread. */
+    private final ArrayList<PonyEngine> engines = new ArrayList<PonyEngine>();
+    
+    private static volatile String rendererStatus = null;
+    
+    private static void setRendererStatus(String status) {
+        rendererStatus = status;
+        Log.i("PonyPaper", "Rendering with " + status);
+    }
+    
+    /**
+     * Describes how the wallpaper is currently being drawn, for display in the
+     * settings.
+     * 
+     * @return a short description of the renderer, or {@code null} if the
+     *         wallpaper has not drawn anything yet
+     */
+    public static String getRendererStatus() {
+        return rendererStatus;
+    }
+    
+    private ExecutorService worker;
+    
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        worker = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(final Runnable r) {
+                return new Thread(new Runnable() {
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, "PonyPaper worker");
+            }
+        });
+        
+        if (BuildConfig.DEBUG) {
+            worker.execute(new FrameAllocationCheck(this, PreferenceManager.getDefaultSharedPreferences(this)));
+        }
+    }
+    
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        worker.shutdownNow();
+    }
     
     @Override
     public Engine onCreateEngine() {
         PreferenceManager.setDefaultValues(this, R.xml.preferences, true);
-        return new PonyEngine();
+        PonyEngine engine = new PonyEngine();
+        engines.add(engine);
+        return engine;
+    }
+    
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        int tier = getTrimTier(level);
+        if (tier == 0) return;
+        for (PonyEngine engine : engines) engine.trimMemory(tier);
+    }
+    
+    /**
+     * Called when memory has all but run out. Before Ice Cream Sandwich there
+     * is no {@link #onTrimMemory}, so this is the only warning given.
+     */
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        for (PonyEngine engine : engines) engine.trimMemory(Ponies.TRIM_CRITICAL);
+    }
+    
+    /**
+     * Works out how much memory to free for a level passed to
+     * {@link #onTrimMemory}. The wallpaper is drawn whether the process is
+     * in the foreground or background, so the running and background levels
+     * are treated alike.
+     * 
+     * @return one of the {@code TRIM_} constants in {@link Ponies}, or
+     *         {@code 0} to free nothing
+     */
+    private static int getTrimTier(int level) {
+        if (level >= TRIM_MEMORY_COMPLETE || level == TRIM_MEMORY_RUNNING_CRITICAL) {
+            return Ponies.TRIM_CRITICAL;
+        } else if (level >= TRIM_MEMORY_MODERATE || level == TRIM_MEMORY_RUNNING_LOW) {
+            return Ponies.TRIM_HIGH;
+        } else if (level >= TRIM_MEMORY_BACKGROUND || level == TRIM_MEMORY_RUNNING_MODERATE) {
+            return Ponies.TRIM_MODERATE;
+        }
+        return 0;
     }
     
 }
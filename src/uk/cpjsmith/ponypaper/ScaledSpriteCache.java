@@ -0,0 +1,188 @@
+package uk.cpjsmith.ponypaper;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Rect;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Keeps copies of sprite frames enlarged by a whole number, so that they can
+ * be drawn at one screen pixel per bitmap pixel rather than stretched on every
+ * frame. The frames are enlarged with nearest-neighbour sampling, so the pixel
+ * art stays sharp.
+ * <p>
+ * Frames are enlarged as they are first drawn. Once the cache exceeds its byte
+ * budget, the sheets least recently drawn are dropped, their bitmaps going to
+ * the {@link BitmapPool}. Sheets drawn in the current frame are never dropped;
+ * if there is no other room, the frame is not cached and should be drawn the
+ * usual way. Sheets not drawn for a while are dropped regardless, so that the
+ * cache does not keep sheets alive that the {@link SpriteCache} has let go.
+ * <p>
+ * The enlarged frames are also counted against the budget of the
+ * {@link SpriteCache}, which is shared by the whole process, so that several
+ * engines' caches together cannot take more than their share.
+ */
+public class ScaledSpriteCache {
+    
+    /* Sheets not drawn for this many frames are dropped. */
+    private static final int STALE_FRAMES = 100;
+    
+    private final LinkedHashMap<SpriteSheet, Entry> entries = new LinkedHashMap<SpriteSheet, Entry>(16, 0.75f, true);
+    private final long budget;
+    private long size = 0;
+    private int factor = 1;
+    private int frameCount = 0;
+    
+    private final Rect srcRect = new Rect();
+    private final Rect dstRect = new Rect();
+    
+    private static class Entry {
+        
+        final Bitmap[] frames;
+        /* The bytes counted for the frames, as reserved in the SpriteCache. */
+        long bytes = 0;
+        int lastUsed;
+        
+        Entry(int frames) {
+            this.frames = new Bitmap[frames];
+        }
+        
+    }
+    
+    /**
+     * Creates a new, empty {@code ScaledSpriteCache}.
+     * 
+     * @param budget the most bytes of bitmap data to keep
+     */
+    public ScaledSpriteCache(long budget) {
+        this.budget = budget;
+    }
+    
+    /**
+     * Sets the factor that frames are enlarged by, discarding any frames
+     * enlarged by a different factor.
+     * 
+     * @param factor the scale factor from sprite pixels to screen pixels
+     */
+    public void setFactor(int factor) {
+        if (factor == this.factor) return;
+        clear();
+        this.factor = factor;
+    }
+    
+    /**
+     * Starts a new frame. Sheets used since the last call may be dropped to
+     * make room for others, and sheets that have not been used for a while
+     * are dropped.
+     */
+    public void beginFrame() {
+        frameCount++;
+        // Only look every so often, as iterating allocates.
+        if (frameCount % STALE_FRAMES == 0) dropStale();
+    }
+    
+    /**
+     * Returns a frame of a sprite sheet enlarged by the current factor,
+     * enlarging it if it is not already cached.
+     * 
+     * @param sheet the sprite sheet
+     * @param frame the index of the frame within the sheet
+     * @return the enlarged frame, or {@code null} if there is no room for it
+     */
+    public Bitmap getFrame(SpriteSheet sheet, int frame) {
+        Entry entry = entries.get(sheet);
+        if (entry == null) {
+            entry = new Entry(sheet.getSlotCount());
+            entries.put(sheet, entry);
+        }
+        entry.lastUsed = frameCount;
+        // Frames with the same image share the same enlarged copy.
+        int slot = sheet.getSlot(frame);
+        if (entry.frames[slot] != null) return entry.frames[slot];
+        
+        sheet.getSlotRect(slot, srcRect);
+        int width = srcRect.width() * factor;
+        int height = srcRect.height() * factor;
+        if (width == 0 || height == 0) return null; // Nothing to draw.
+        long bytes = (long)width * height * 4;
+        if (!makeRoom(bytes)) return null;
+        if (!SpriteCache.getInstance().reserve(bytes)) return null;
+        
+        Bitmap bitmap = BitmapPool.getInstance().obtain(width, height);
+        bitmap.eraseColor(0);
+        dstRect.set(0, 0, width, height);
+        // Without a paint, the bitmap is not filtered.
+        new Canvas(bitmap).drawBitmap(sheet.bitmap, srcRect, dstRect, null);
+        
+        entry.frames[slot] = bitmap;
+        entry.bytes += bytes;
+        size += bytes;
+        return bitmap;
+    }
+    
+    /**
+     * Discards all of the enlarged frames.
+     */
+    public void clear() {
+        for (Entry entry : entries.values()) release(entry);
+        entries.clear();
+        size = 0;
+    }
+    
+    /**
+     * Returns the number of bytes of bitmap data held, as counted against the
+     * budgets.
+     * 
+     * @return the size in bytes
+     */
+    public long getSize() {
+        return size;
+    }
+    
+    /**
+     * Drops sheets not used in the current frame until there is room for the
+     * given number of bytes.
+     */
+    private boolean makeRoom(long bytes) {
+        Iterator<Entry> it = entries.values().iterator();
+        while (size + bytes > budget && it.hasNext()) {
+            Entry entry = it.next();
+            if (entry.lastUsed != frameCount) {
+                size -= release(entry);
+                it.remove();
+            }
+        }
+        return size + bytes <= budget;
+    }
+    
+    /**
+     * Drops sheets that have not been used for {@link #STALE_FRAMES} frames.
+     * Entries are kept in order of use, so the stale ones come first.
+     */
+    private void dropStale() {
+        Iterator<Entry> it = entries.values().iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            if (frameCount - entry.lastUsed <= STALE_FRAMES) break;
+            size -= release(entry);
+            it.remove();
+        }
+    }
+    
+    /**
+     * Gives an entry's frames to the {@link BitmapPool} and their bytes back
+     * to the {@link SpriteCache}.
+     * 
+     * @return the number of bytes freed
+     */
+    private static long release(Entry entry) {
+        BitmapPool pool = BitmapPool.getInstance();
+        for (Bitmap bitmap : entry.frames) {
+            if (bitmap != null) pool.put(bitmap);
+        }
+        SpriteCache.getInstance().unreserve(entry.bytes);
+        return entry.bytes;
+    }
+    
+}
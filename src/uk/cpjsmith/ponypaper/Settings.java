@@ -89,6 +89,15 @@ public class Settings extends PreferenceActivity {
         });
     }
     
+    @Override
+    protected void onResume() {
+        super.onResume();
+        String status = PonyWallpaper.getRendererStatus();
+        if (status != null) {
+            findPreference("pref_renderer").setSummary("%s (currently using " + status + ")");
+        }
+    }
+    
     private void selectBackground() {
         Intent intent = new Intent(Intent.ACTION_GET_CONTENT);
         intent.setType("image/*");
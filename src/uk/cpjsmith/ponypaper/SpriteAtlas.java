@@ -0,0 +1,407 @@
+package uk.cpjsmith.ponypaper;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+import android.graphics.Rect;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+
+/**
+ * Packs the frames of the sprite sheets in use into a few square pages, so
+ * that all of the ponies can be drawn from the same bitmap. This also splits
+ * up sheets that are too wide to be drawn by the hardware renderer in one
+ * piece. Frames are packed onto shelves: rows of frames of similar height,
+ * filled from left to right.
+ * <p>
+ * Sheets are added as they come into use. Sheets that have not been used for
+ * a while are dropped, and the pages repacked, once they take up more room
+ * than the sheets still in use, or when there is no room for a new sheet.
+ * Only the sheets used in the current frame are copied again when repacking:
+ * the atlas keeps the sheets but holds no {@link SpriteCache} reference on
+ * them, so any others may since have been compacted or had their bitmaps
+ * reused. Sheets that do not fit are simply drawn from their own bitmaps.
+ * <p>
+ * Pages come from the {@link BitmapPool} and go back to it when freed. They
+ * are counted against the budget of the {@link SpriteCache}, and no page is
+ * added if there is no room for it there.
+ */
+public class SpriteAtlas {
+    
+    /** The width and height of each page, in pixels. */
+    public static final int PAGE_SIZE = 1024;
+    private static final int MAX_PAGES = 4;
+    private static final long PAGE_BYTES = (long)PAGE_SIZE * PAGE_SIZE * 4;
+    /* Sheets not used for this many frames may be dropped from the atlas. */
+    private static final int STALE_FRAMES = 100;
+    
+    private static final Comparator<Region> TALLEST_FIRST = new Comparator<Region>() {
+        public int compare(Region a, Region b) {
+            return b.sheet.frameHeight - a.sheet.frameHeight;
+        }
+    };
+    
+    private final ArrayList<Bitmap> pages = new ArrayList<Bitmap>();
+    private final ArrayList<Canvas> pageCanvases = new ArrayList<Canvas>();
+    private final ArrayList<ArrayList<Shelf>> shelves = new ArrayList<ArrayList<Shelf>>();
+    private final IdentityHashMap<SpriteSheet, Region> regions = new IdentityHashMap<SpriteSheet, Region>();
+    /* The same regions, for iterating over without allocating. */
+    private final ArrayList<Region> regionList = new ArrayList<Region>();
+    private final Paint copyPaint = new Paint();
+    private final Rect srcRect = new Rect();
+    private final Rect dstRect = new Rect();
+    /* Scratch space for place(), kept so that adding a sheet allocates as
+     * little as possible. */
+    private int[] shelfX = new int[0];
+    private final ArrayList<Shelf> newShelves = new ArrayList<Shelf>();
+    private final ArrayList<Region> repackList = new ArrayList<Region>();
+    
+    private int frameCount = 0;
+    private boolean full = false;
+    private int fullSince = 0;
+    /* The number of times sheets have been copied into the pages. */
+    private int changes = 0;
+    
+    /**
+     * Where the frames of one sprite sheet have been placed.
+     */
+    private static class Region {
+        
+        final SpriteSheet sheet;
+        int page;
+        /* The position on the page of each of the sheet's slots. */
+        final int[] frameX;
+        final int[] frameY;
+        final int area;
+        int lastUsed;
+        
+        Region(SpriteSheet sheet, int area) {
+            this.sheet = sheet;
+            this.frameX = new int[sheet.getSlotCount()];
+            this.frameY = new int[sheet.getSlotCount()];
+            this.area = area;
+        }
+        
+    }
+    
+    /**
+     * A row of frames on a page.
+     */
+    private static class Shelf {
+        
+        final int y;
+        final int height;
+        int x = 0;
+        
+        Shelf(int y, int height) {
+            this.y = y;
+            this.height = height;
+        }
+        
+    }
+    
+    /**
+     * Creates a new, empty {@code SpriteAtlas}.
+     */
+    public SpriteAtlas() {
+        copyPaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC));
+    }
+    
+    /**
+     * Notes that a sprite sheet will be drawn in the current frame, adding it
+     * to the atlas if it is not already there. This should be called for each
+     * sheet between {@link #beginFrame()} and {@link #endFrame()}.
+     * 
+     * @param sheet the sprite sheet
+     */
+    public void use(SpriteSheet sheet) {
+        Region region = regions.get(sheet);
+        if (region == null) {
+            region = add(sheet);
+            if (region == null) return;
+        }
+        region.lastUsed = frameCount;
+    }
+    
+    /**
+     * Starts collecting the sprite sheets used in a frame.
+     */
+    public void beginFrame() {
+        frameCount++;
+    }
+    
+    /**
+     * Finishes collecting the sprite sheets used in a frame, repacking the
+     * atlas if too much of it is taken up by sheets no longer in use.
+     */
+    public void endFrame() {
+        int liveArea = 0;
+        int staleArea = 0;
+        for (int i = 0; i < regionList.size(); i++) {
+            Region region = regionList.get(i);
+            if (frameCount - region.lastUsed > STALE_FRAMES) {
+                staleArea += region.area;
+            } else {
+                liveArea += region.area;
+            }
+        }
+        if (staleArea > 0 && (full || staleArea > liveArea)) {
+            repack();
+        } else if (full && frameCount - fullSince > STALE_FRAMES) {
+            // The budget may have room for another page by now.
+            full = false;
+        }
+    }
+    
+    /**
+     * Drops the sheets not used in the latest frame, freeing any pages that
+     * are no longer needed.
+     */
+    public void trim() {
+        if (!regionList.isEmpty()) repack();
+    }
+    
+    /**
+     * Finds the location of a frame in the atlas.
+     * 
+     * @param sheet the sprite sheet
+     * @param frame the index of the frame within the sheet
+     * @param out   the rectangle to receive the frame's boundary on its page
+     * @return the index of the page the frame is on, or {@code -1} if the
+     *         sheet is not in the atlas
+     */
+    public int getFrame(SpriteSheet sheet, int frame, Rect out) {
+        Region region = regions.get(sheet);
+        if (region == null) return -1;
+        int slot = sheet.getSlot(frame);
+        sheet.getSlotRect(slot, out);
+        out.offsetTo(region.frameX[slot], region.frameY[slot]);
+        return region.page;
+    }
+    
+    /**
+     * Returns one of the pages of the atlas.
+     * 
+     * @param page the page index, as returned by
+     *             {@link #getFrame(SpriteSheet, int, Rect)}
+     * @return the page bitmap
+     */
+    public Bitmap getPage(int page) {
+        return pages.get(page);
+    }
+    
+    /**
+     * Returns the number of pages in the atlas.
+     * 
+     * @return the page count
+     */
+    public int getPageCount() {
+        return pages.size();
+    }
+    
+    /**
+     * Discards all of the pages.
+     */
+    public void clear() {
+        for (int i = pages.size() - 1; i >= 0; i--) removePage(i);
+        regions.clear();
+        regionList.clear();
+        full = false;
+    }
+    
+    /**
+     * Returns the number of times sheets have been added to the atlas or the
+     * pages repacked.
+     * 
+     * @return the count, which may wrap around
+     */
+    public int getChangeCount() {
+        return changes;
+    }
+    
+    /**
+     * Returns the number of bytes of bitmap data held by the pages.
+     * 
+     * @return the size in bytes
+     */
+    public long getSize() {
+        long size = 0;
+        for (Bitmap page : pages) size += BitmapPool.getBytes(page);
+        return size;
+    }
+    
+    /**
+     * Places all the frames of a sheet in the atlas and copies them there.
+     * 
+     * @return the new region, or {@code null} if the sheet did not fit
+     */
+    private Region add(SpriteSheet sheet) {
+        if (sheet.bitmap == null) return null; // Compacted, so nothing to copy.
+        
+        // Repeated frames are only stored once, so place the slots rather
+        // than the frames.
+        int slots = sheet.getSlotCount();
+        int area = 0;
+        for (int i = 0; i < slots; i++) {
+            sheet.getSlotRect(i, srcRect);
+            if (srcRect.width() > PAGE_SIZE || srcRect.height() > PAGE_SIZE) return null;
+            area += srcRect.width() * srcRect.height();
+        }
+        if (full || area > PAGE_SIZE * PAGE_SIZE) return null;
+        
+        // Keep all the frames of a sheet on the same page, so that a pony is
+        // always drawn from one bitmap.
+        Region region = new Region(sheet, area);
+        for (int page = 0; page <= pages.size() && page < MAX_PAGES; page++) {
+            boolean newPage = page == pages.size();
+            if (newPage && !addPage()) break;
+            region.page = page;
+            if (place(page, region)) {
+                Canvas c = pageCanvases.get(page);
+                for (int i = 0; i < slots; i++) {
+                    sheet.getSlotRect(i, srcRect);
+                    dstRect.set(srcRect);
+                    dstRect.offsetTo(region.frameX[i], region.frameY[i]);
+                    c.drawBitmap(sheet.bitmap, srcRect, dstRect, copyPaint);
+                }
+                regions.put(sheet, region);
+                regionList.add(region);
+                changes++;
+                return region;
+            }
+            if (newPage) {
+                // Too big even for a page to itself.
+                removePage(page);
+                return null;
+            }
+        }
+        full = true;
+        fullSince = frameCount;
+        return null;
+    }
+    
+    /**
+     * Finds room for every frame of a region on a page. Nothing on the page
+     * is changed unless all of the frames fit.
+     */
+    private boolean place(int page, Region region) {
+        ArrayList<Shelf> pageShelves = shelves.get(page);
+        
+        int shelfCount = pageShelves.size();
+        if (shelfX.length < shelfCount) shelfX = new int[shelfCount * 2];
+        for (int i = 0; i < shelfCount; i++) shelfX[i] = pageShelves.get(i).x;
+        int top = 0;
+        if (shelfCount > 0) {
+            Shelf last = pageShelves.get(shelfCount - 1);
+            top = last.y + last.height;
+        }
+        newShelves.clear();
+        
+        for (int slot = 0; slot < region.frameX.length; slot++) {
+            region.sheet.getSlotRect(slot, srcRect);
+            int w = srcRect.width();
+            int h = srcRect.height();
+            if (w == 0 || h == 0) continue; // A blank frame takes no room.
+            
+            // Use a shelf that is tall enough, but not so tall that much of
+            // the space would be wasted, first among the existing ones.
+            int existing = -1;
+            for (int i = 0; i < shelfCount && existing < 0; i++) {
+                if (fits(pageShelves.get(i), shelfX[i], w, h)) existing = i;
+            }
+            if (existing >= 0) {
+                region.frameX[slot] = shelfX[existing];
+                region.frameY[slot] = pageShelves.get(existing).y;
+                shelfX[existing] += w;
+                continue;
+            }
+            
+            Shelf shelf = null;
+            for (int i = 0; i < newShelves.size() && shelf == null; i++) {
+                if (fits(newShelves.get(i), newShelves.get(i).x, w, h)) shelf = newShelves.get(i);
+            }
+            // Then open a new shelf at the bottom of the page.
+            if (shelf == null) {
+                if (top + h > PAGE_SIZE) {
+                    newShelves.clear();
+                    return false;
+                }
+                shelf = new Shelf(top, h);
+                newShelves.add(shelf);
+                top += h;
+            }
+            region.frameX[slot] = shelf.x;
+            region.frameY[slot] = shelf.y;
+            shelf.x += w;
+        }
+        
+        for (int i = 0; i < shelfCount; i++) pageShelves.get(i).x = shelfX[i];
+        for (int i = 0; i < newShelves.size(); i++) pageShelves.add(newShelves.get(i));
+        newShelves.clear();
+        return true;
+    }
+    
+    private static boolean fits(Shelf shelf, int x, int w, int h) {
+        return shelf.height >= h && shelf.height <= h * 3 / 2 && x + w <= PAGE_SIZE;
+    }
+    
+    private void removePage(int page) {
+        BitmapPool.getInstance().put(pages.remove(page));
+        pageCanvases.remove(page);
+        shelves.remove(page);
+        SpriteCache.getInstance().unreserve(PAGE_BYTES);
+    }
+    
+    /**
+     * Adds an empty page, if there is room for it in the budget.
+     */
+    private boolean addPage() {
+        if (!SpriteCache.getInstance().reserve(PAGE_BYTES)) return false;
+        Bitmap page = BitmapPool.getInstance().obtain(PAGE_SIZE, PAGE_SIZE);
+        page.eraseColor(0);
+        pages.add(page);
+        pageCanvases.add(new Canvas(page));
+        shelves.add(new ArrayList<Shelf>());
+        return true;
+    }
+    
+    /**
+     * Drops the sheets not used in the current frame and packs the rest again
+     * from scratch, tallest first. Sheets used in the current frame are still
+     * held by the ponies drawing them, so their bitmaps are safe to copy.
+     */
+    private void repack() {
+        changes++;
+        ArrayList<Region> live = repackList;
+        for (int i = 0; i < regionList.size(); i++) {
+            Region region = regionList.get(i);
+            if (region.lastUsed == frameCount) live.add(region);
+        }
+        Collections.sort(live, TALLEST_FIRST);
+        
+        regions.clear();
+        regionList.clear();
+        for (int i = 0; i < shelves.size(); i++) {
+            shelves.get(i).clear();
+            pages.get(i).eraseColor(0);
+        }
+        full = false;
+        
+        for (int i = 0; i < live.size(); i++) {
+            Region old = live.get(i);
+            Region region = add(old.sheet);
+            if (region != null) region.lastUsed = old.lastUsed;
+        }
+        live.clear();
+        
+        // Drop any pages left empty.
+        for (int i = pages.size() - 1; i >= 0 && shelves.get(i).isEmpty(); i--) {
+            removePage(i);
+        }
+    }
+    
+}
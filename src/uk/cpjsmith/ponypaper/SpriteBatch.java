@@ -0,0 +1,146 @@
+package uk.cpjsmith.ponypaper;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapShader;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.graphics.Shader;
+import android.os.Build;
+
+/**
+ * Draws many sprites from the same atlas page with a single call to
+ * {@link Canvas#drawVertices}. Each sprite becomes a pair of triangles whose
+ * texture coordinates pick out its frame on the page, in the order they are
+ * added, so later sprites are drawn on top.
+ * <p>
+ * The arrays are kept between frames and only grow when more sprites are
+ * added than ever before.
+ */
+public class SpriteBatch {
+    
+    private float[] verts = new float[0];
+    private float[] texs = new float[0];
+    private short[] indices = new short[0];
+    private int count = 0;
+    private int page = -1;
+    
+    private final Paint paint = new Paint();
+    private Bitmap shaderBitmap = null;
+    
+    /**
+     * Determines whether a canvas can draw batches. Software canvases always
+     * can; hardware canvases only support {@code drawVertices} from Android
+     * 10.
+     * 
+     * @param c the canvas
+     * @return {@code true} if {@link #drawOn} will work on the canvas
+     */
+    public static boolean isSupported(Canvas c) {
+        // 29 is Android 10, which is newer than the SDK the app is built
+        // against.
+        return !c.isHardwareAccelerated() || Build.VERSION.SDK_INT >= 29;
+    }
+    
+    /**
+     * Empties the batch, ready for the next frame.
+     */
+    public void begin() {
+        count = 0;
+        page = -1;
+    }
+    
+    /**
+     * Adds a sprite to the batch. All of the sprites in a batch must come
+     * from the same atlas page.
+     * 
+     * @param page     the atlas page the frame is on
+     * @param src      the frame's boundary on the page
+     * @param dst      where to draw the frame
+     * @param mirrored whether to flip the frame horizontally
+     * @return {@code true} if the sprite was added, or {@code false} if it
+     *         is on a different page from the others
+     */
+    public boolean add(int page, Rect src, RectF dst, boolean mirrored) {
+        if (this.page == -1) this.page = page;
+        if (page != this.page) return false;
+        
+        ensureCapacity(count + 1);
+        setQuad(verts, count * 8, dst.left, dst.top, dst.right, dst.bottom);
+        if (mirrored) {
+            setQuad(texs, count * 8, src.right, src.top, src.left, src.bottom);
+        } else {
+            setQuad(texs, count * 8, src.left, src.top, src.right, src.bottom);
+        }
+        count++;
+        return true;
+    }
+    
+    /**
+     * Draws all of the sprites in the batch.
+     * 
+     * @param c     the canvas to draw on
+     * @param atlas the atlas the sprites come from
+     */
+    public void drawOn(Canvas c, SpriteAtlas atlas) {
+        if (count == 0) return;
+        
+        Bitmap bitmap = atlas.getPage(page);
+        if (bitmap != shaderBitmap) {
+            paint.setShader(new BitmapShader(bitmap, Shader.TileMode.CLAMP, Shader.TileMode.CLAMP));
+            shaderBitmap = bitmap;
+        }
+        c.drawVertices(Canvas.VertexMode.TRIANGLES, count * 8, verts, 0, texs, 0, null, 0, indices, 0, count * 6, paint);
+    }
+    
+    /**
+     * Forgets the atlas page being drawn from, so that it can be freed.
+     */
+    public void clear() {
+        paint.setShader(null);
+        shaderBitmap = null;
+        begin();
+    }
+    
+    /**
+     * Stores the corners of a rectangle, clockwise from the top left.
+     */
+    private static void setQuad(float[] array, int offset, float left, float top, float right, float bottom) {
+        array[offset] = left;
+        array[offset + 1] = top;
+        array[offset + 2] = right;
+        array[offset + 3] = top;
+        array[offset + 4] = right;
+        array[offset + 5] = bottom;
+        array[offset + 6] = left;
+        array[offset + 7] = bottom;
+    }
+    
+    private void ensureCapacity(int sprites) {
+        int capacity = indices.length / 6;
+        if (sprites <= capacity) return;
+        
+        capacity = Math.max(sprites, capacity * 2);
+        float[] newVerts = new float[capacity * 8];
+        float[] newTexs = new float[capacity * 8];
+        System.arraycopy(verts, 0, newVerts, 0, verts.length);
+        System.arraycopy(texs, 0, newTexs, 0, texs.length);
+        verts = newVerts;
+        texs = newTexs;
+        
+        // The triangles are the same for every batch, so only need setting
+        // up once.
+        indices = new short[capacity * 6];
+        for (int i = 0; i < capacity; i++) {
+            short v = (short)(i * 4);
+            indices[i * 6] = v;
+            indices[i * 6 + 1] = (short)(v + 1);
+            indices[i * 6 + 2] = (short)(v + 2);
+            indices[i * 6 + 3] = v;
+            indices[i * 6 + 4] = (short)(v + 2);
+            indices[i * 6 + 5] = (short)(v + 3);
+        }
+    }
+    
+}
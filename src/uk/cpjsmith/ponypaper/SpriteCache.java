@@ -0,0 +1,338 @@
+package uk.cpjsmith.ponypaper;
+
+import android.content.res.Resources;
+import android.util.Base64;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Shares decoded sprite sheets between all of the wallpaper's engines, so that
+ * each image is only decoded once per process however many ponies and engines
+ * use it. Sheets are reference counted: each call to one of the
+ * {@code acquire} methods must be matched by a call to {@link #release}.
+ * Sheets that are no longer in use are kept until the cache exceeds its byte
+ * budget, then discarded least recently used first, their bitmaps going to the
+ * {@link BitmapPool} for reuse. Sheets that are still in use are never
+ * discarded, so the cache may grow beyond its budget if that many sprites are
+ * on screen at once. Unused sheets are compacted to their indexed form where
+ * possible (see {@link SpriteSheet#compact()}), so several times as many of
+ * them fit in the budget, and are expanded again when next acquired.
+ * <p>
+ * Sheets found to be the mirror image of another (see {@link #checkMirror})
+ * are remembered, and never decoded again: the other sheet is handed out in
+ * their place, to be drawn flipped.
+ * <p>
+ * This class is thread-safe. Decoding is done outside of the lock, so one
+ * thread decoding a large image does not hold up others.
+ */
+public class SpriteCache {
+    
+    private static SpriteCache instance = null;
+    
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+    private final IdentityHashMap<SpriteSheet, Entry> entriesBySheet = new IdentityHashMap<SpriteSheet, Entry>();
+    /* The keys of sheets that are mirror images, mapped to the key of the
+     * sheet they are the mirror of, and those known not to be. */
+    private final HashMap<Key, Key> mirrors = new HashMap<Key, Key>();
+    private final HashSet<Key> notMirrors = new HashSet<Key>();
+    private final long budget;
+    private long size = 0;
+    /* Bytes held elsewhere for drawing the sprites, e.g. atlas pages. */
+    private long reserved = 0;
+    /* The number of references taken and given up. */
+    private int changes = 0;
+    
+    private static class Key {
+        
+        /* A drawable resource ID, or the image data of a custom pony. */
+        final Object image;
+        /* An integer array resource ID, or the frame times of a custom pony. */
+        final Object timings;
+        final int direction;
+        
+        Key(Object image, Object timings, int direction) {
+            this.image = image;
+            this.timings = timings;
+            this.direction = direction;
+        }
+        
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key other = (Key)o;
+            return image.equals(other.image) && timings.equals(other.timings) && direction == other.direction;
+        }
+        
+        @Override
+        public int hashCode() {
+            return (image.hashCode() * 31 + timings.hashCode()) * 31 + direction;
+        }
+        
+    }
+    
+    private static class Entry {
+        
+        final Key key;
+        final SpriteSheet sheet;
+        long bytes;
+        int references = 0;
+        
+        Entry(Key key, SpriteSheet sheet) {
+            this.key = key;
+            this.sheet = sheet;
+            this.bytes = sheet.getSize();
+        }
+        
+    }
+    
+    /**
+     * Returns the cache shared by the whole process. Its budget is an eighth
+     * of the memory available to the process.
+     * 
+     * @return the cache
+     */
+    public static synchronized SpriteCache getInstance() {
+        if (instance == null) instance = new SpriteCache(Runtime.getRuntime().maxMemory() / 8);
+        return instance;
+    }
+    
+    /**
+     * Creates a new {@code SpriteCache}.
+     * 
+     * @param budget the number of bytes of bitmap data beyond which unused
+     *               sheets are discarded
+     */
+    public SpriteCache(long budget) {
+        this.budget = budget;
+    }
+    
+    /**
+     * Obtains the sprite sheet for a built-in pony, decoding it if it is not
+     * already cached.
+     * 
+     * @param res       the {@code Resources} object to load from
+     * @param drawId    the identifier of the drawable resource
+     * @param timesId   the identifier of the frame times array resource
+     * @param direction the direction the sheet is for
+     * @return the sprite sheet, which must be passed to {@link #release}
+     *         when no longer needed
+     */
+    public SpriteSheet acquire(Resources res, int drawId, int timesId, int direction) {
+        return acquire(res, new Key(drawId, timesId, direction));
+    }
+    
+    /**
+     * Obtains the sprite sheet for a custom pony, decoding it if it is not
+     * already cached.
+     * 
+     * @param image     the image file, Base64 encoded
+     * @param timings   the frame times, separated by commas
+     * @param direction the direction the sheet is for
+     * @return the sprite sheet, which must be passed to {@link #release}
+     *         when no longer needed
+     */
+    public SpriteSheet acquire(String image, String timings, int direction) {
+        return acquire(null, new Key(image, timings, direction));
+    }
+    
+    /**
+     * Obtains another reference to a sprite sheet that is already held.
+     * 
+     * @param sheet the sprite sheet, which must have been obtained from this
+     *              cache and not yet released
+     * @return the same sheet, which must be passed to {@link #release} an
+     *         extra time
+     */
+    public synchronized SpriteSheet retain(SpriteSheet sheet) {
+        entriesBySheet.get(sheet).references++;
+        changes++;
+        return sheet;
+    }
+    
+    /**
+     * Determines whether one sprite sheet is the mirror image of another.
+     * If so, it is remembered, and later requests for the second sheet return
+     * the first. Each pair of sheets is only compared once.
+     * 
+     * @param left  a sprite sheet obtained from this cache
+     * @param right another sprite sheet obtained from this cache, with the
+     *              frames in the same order
+     * @return {@code true} if each frame of {@code right} is the horizontal
+     *         flip of the same frame of {@code left}
+     */
+    public boolean checkMirror(SpriteSheet left, SpriteSheet right) {
+        if (left == right) return true;
+        
+        Key leftKey;
+        Key rightKey;
+        synchronized (this) {
+            leftKey = entriesBySheet.get(left).key;
+            rightKey = entriesBySheet.get(right).key;
+            if (mirrors.containsKey(rightKey)) return true;
+            if (notMirrors.contains(rightKey)) return false;
+        }
+        
+        boolean mirrored = right.isMirrorOf(left);
+        synchronized (this) {
+            if (mirrored) {
+                mirrors.put(rightKey, leftKey);
+            } else {
+                notMirrors.add(rightKey);
+            }
+        }
+        return mirrored;
+    }
+    
+    /**
+     * Gives up a reference to a sprite sheet obtained from this cache.
+     * 
+     * @param sheet the sprite sheet
+     */
+    public synchronized void release(SpriteSheet sheet) {
+        Entry entry = entriesBySheet.get(sheet);
+        if (entry == null) return;
+        entry.references--;
+        changes++;
+        if (entry.references == 0) {
+            // The first time, this makes the indexed copy, which is a single
+            // pass over the pixels, so is also fine to do while holding the
+            // lock.
+            entry.sheet.compact();
+            updateSize(entry);
+        }
+        trim(budget - reserved);
+    }
+    
+    /**
+     * Counts bitmap data held elsewhere for drawing the sprites, such as
+     * atlas pages, against the cache's budget. Unused sheets are discarded to
+     * make room.
+     * 
+     * @param bytes the number of bytes wanted
+     * @return {@code true} if they fit in the budget, in which case they must
+     *         be given back with {@link #unreserve} once freed
+     */
+    public synchronized boolean reserve(long bytes) {
+        trim(budget - reserved - bytes);
+        if (size + reserved + bytes > budget) return false;
+        reserved += bytes;
+        return true;
+    }
+    
+    /**
+     * Gives back bytes counted by {@link #reserve}.
+     * 
+     * @param bytes the number of bytes freed
+     */
+    public synchronized void unreserve(long bytes) {
+        reserved -= bytes;
+    }
+    
+    /**
+     * Discards unused sheets until the cache holds no more than the given
+     * number of bytes, or only sheets that are in use remain.
+     * 
+     * @param maxBytes the target size
+     */
+    public synchronized void trimTo(long maxBytes) {
+        trim(maxBytes);
+    }
+    
+    /**
+     * Returns the number of bytes of image data currently held, not counting
+     * that reserved with {@link #reserve}.
+     * 
+     * @return the size in bytes
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+    
+    /**
+     * Returns the number of times a reference to a sheet has been taken or
+     * given up, so that callers can tell whether any were in some period.
+     * 
+     * @return the count, which may wrap around
+     */
+    public synchronized int getChangeCount() {
+        return changes;
+    }
+    
+    private SpriteSheet acquire(Resources res, Key key) {
+        Key source;
+        synchronized (this) {
+            source = mirrors.get(key);
+        }
+        if (source != null) key = source;
+        
+        SpriteSheet sheet = acquireCached(key);
+        if (sheet != null) return sheet;
+        if (key.image instanceof Integer) {
+            sheet = new SpriteSheet(res, (Integer)key.image, (Integer)key.timings);
+        } else {
+            sheet = new SpriteSheet(Base64.decode((String)key.image, 0), parseInts((String)key.timings));
+        }
+        return add(key, sheet);
+    }
+    
+    private synchronized SpriteSheet acquireCached(Key key) {
+        Entry entry = entries.get(key);
+        if (entry == null) return null;
+        if (entry.references == 0) {
+            // Expanding is only a palette lookup per pixel, so much quicker
+            // than decoding and fine to do while holding the lock.
+            entry.sheet.expand();
+            updateSize(entry);
+        }
+        entry.references++;
+        changes++;
+        return entry.sheet;
+    }
+    
+    private synchronized SpriteSheet add(Key key, SpriteSheet sheet) {
+        // Another thread may have decoded the same sheet in the meantime.
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            entry = new Entry(key, sheet);
+            entries.put(key, entry);
+            entriesBySheet.put(sheet, entry);
+            size += entry.bytes;
+        }
+        entry.references++;
+        changes++;
+        trim(budget - reserved);
+        return entry.sheet;
+    }
+    
+    private void updateSize(Entry entry) {
+        size -= entry.bytes;
+        entry.bytes = entry.sheet.getSize();
+        size += entry.bytes;
+    }
+    
+    private void trim(long maxBytes) {
+        Iterator<Entry> it = entries.values().iterator();
+        while (size > maxBytes && it.hasNext()) {
+            Entry entry = it.next();
+            if (entry.references <= 0) {
+                it.remove();
+                entriesBySheet.remove(entry.sheet);
+                size -= entry.bytes;
+                BitmapPool.getInstance().put(entry.sheet.bitmap);
+            }
+        }
+    }
+    
+    private static int[] parseInts(String value) {
+        String[] array = value.split(",");
+        int[] result = new int[array.length];
+        for (int i = 0; i < array.length; i++) {
+            result[i] = Integer.parseInt(array[i]);
+        }
+        return result;
+    }
+    
+}
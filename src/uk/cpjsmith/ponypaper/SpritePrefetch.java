@@ -0,0 +1,94 @@
+package uk.cpjsmith.ponypaper;
+
+import java.util.ArrayList;
+
+/**
+ * Decodes the sprites of some actions into the {@link SpriteCache} ahead of
+ * time, typically on a background thread, so that loading the actions later
+ * is quick. The sheets are held in the cache until {@link #finish()} is
+ * called, by which time the actions have either loaded their own references
+ * to them or are no longer expected to be needed.
+ */
+public class SpritePrefetch implements Runnable {
+    
+    private PonyAction[] actions;
+    private final ArrayList<SpriteSheet> sheets = new ArrayList<SpriteSheet>();
+    private boolean done = false;
+    private boolean finished = false;
+    
+    /**
+     * Creates a new {@code SpritePrefetch}. Nothing is decoded until
+     * {@link #run()} is called.
+     * 
+     * @param actions the actions whose sprites to decode
+     */
+    public SpritePrefetch(PonyAction[] actions) {
+        this.actions = actions;
+    }
+    
+    /**
+     * Decodes the sprites. This may be called on any thread.
+     */
+    @Override
+    public void run() {
+        PonyAction[] actions;
+        synchronized (this) {
+            actions = this.actions;
+        }
+        try {
+            for (int i = 0; i < actions.length; i++) {
+                synchronized (this) {
+                    if (finished) break; // No longer wanted, so don't bother with the rest.
+                }
+                actions[i].acquireSprites(sheets);
+            }
+        } catch (RuntimeException e) {
+            android.util.Log.e("PonyPaper", "Error prefetching sprites: " + e.toString());
+        }
+        synchronized (this) {
+            done = true;
+            if (finished) releaseSheets();
+        }
+    }
+    
+    /**
+     * Determines whether all of the sprites have been decoded.
+     * 
+     * @return {@code true} once {@link #run()} has completed
+     */
+    public synchronized boolean isDone() {
+        return done;
+    }
+    
+    /**
+     * Readies a prefetch that has run and been finished to decode another
+     * set of actions, so that a new one need not be allocated.
+     * 
+     * @param actions the actions whose sprites to decode
+     * @return {@code true} if the prefetch can be run again, or
+     *         {@code false} if it is still in use
+     */
+    public synchronized boolean restart(PonyAction[] actions) {
+        if (!done || !finished) return false;
+        this.actions = actions;
+        done = false;
+        finished = false;
+        return true;
+    }
+    
+    /**
+     * Gives up the sheets held by this prefetch. If it is still running, they
+     * are given up as soon as it completes.
+     */
+    public synchronized void finish() {
+        finished = true;
+        if (done) releaseSheets();
+    }
+    
+    private void releaseSheets() {
+        SpriteCache cache = SpriteCache.getInstance();
+        for (int i = 0; i < sheets.size(); i++) cache.release(sheets.get(i));
+        sheets.clear();
+    }
+    
+}
@@ -4,26 +4,43 @@ import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Rect;
+import java.util.Arrays;
 
 /**
  * Encapsulates a linear sequence of images with associated timings. The images
- * are all stored in a single Bitmap.
+ * are all stored in a single Bitmap. Frames with identical images share the
+ * same slot in the bitmap, so each distinct image is only stored once, and
+ * each slot is trimmed of its transparent border. Only the trimmed part of a
+ * frame needs drawing, at its position within the frame as given by
+ * {@link #getFrameTrim}.
+ * <p>
+ * Sheets with no more than 256 colours can be compacted while they are not
+ * being drawn, freeing the bitmap in favour of an {@link IndexedImage} copy
+ * of the images, and expanded again when they are next needed. The indexed
+ * copy is only made the first time the sheet is compacted, so sheets that
+ * are in use cost no more than their bitmap.
  */
 public class SpriteSheet {
     
+    /** The images, or {@code null} while the sheet is compacted. */
     public Bitmap bitmap;
     public int totalTime;
     public int frameWidth;
     public int frameHeight;
     
-    private static BitmapFactory.Options bfOpts;
-    
     private int[] frameTimes;
-    
-    static {
-        bfOpts = new BitmapFactory.Options();
-        bfOpts.inScaled = false;
-    }
+    /* The time at which each frame ends, i.e. the running total of the frame
+     * times, for finding frames by binary search. */
+    private int[] frameEnds;
+    /* The slot in the bitmap holding each frame's image. */
+    private int[] frameSlots;
+    /* Where each slot is in the bitmap, and the part of the frame that it
+     * covers. */
+    private Rect[] slotRects;
+    private Rect[] slotTrims;
+    private IndexedImage indexed = null;
+    /* Cleared once the images are found to have too many colours to index. */
+    private boolean indexable = true;
     
     /**
      * Constructs a new SpriteSheet object from a drawable resource and an
@@ -36,8 +53,12 @@ public class SpriteSheet {
      * @param timesId the identifier of the integer array resource containing
      *                the frame times
      */
-    public SpriteSheet(Resources res, int drawId, int timesId) {
-        bitmap = BitmapFactory.decodeResource(res, drawId, bfOpts);
+    public SpriteSheet(final Resources res, final int drawId, int timesId) {
+        bitmap = BitmapPool.getInstance().decode(new BitmapPool.Source() {
+            public Bitmap decode(BitmapFactory.Options opts) {
+                return BitmapFactory.decodeResource(res, drawId, opts);
+            }
+        });
         frameTimes = res.getIntArray(timesId);
         setInternals();
     }
@@ -50,8 +71,12 @@ public class SpriteSheet {
      * @param bitmapData the image file as a byte array
      * @param frameTimes the integer array containing the frame times
      */
-    public SpriteSheet(byte[] bitmapData, int[] frameTimes) {
-        this.bitmap = BitmapFactory.decodeByteArray(bitmapData, 0, bitmapData.length);
+    public SpriteSheet(final byte[] bitmapData, int[] frameTimes) {
+        this.bitmap = BitmapPool.getInstance().decode(new BitmapPool.Source() {
+            public Bitmap decode(BitmapFactory.Options opts) {
+                return BitmapFactory.decodeByteArray(bitmapData, 0, bitmapData.length, opts);
+            }
+        });
         this.frameTimes = frameTimes;
         setInternals();
     }
@@ -62,24 +87,326 @@ public class SpriteSheet {
      * 
      * @param time the number of 10-millisecond intervals since the start of
      *             the animation
-     * @return the rectangle to use as the {@code src} parameter to
-     *         {@code android.graphics.canvas.drawBitmap()}
+     * @param out  the rectangle to receive the boundary, for use as the
+     *             {@code src} parameter to
+     *             {@code android.graphics.canvas.drawBitmap()}
+     * @throws IllegalArgumentException if {@code time} is invalid
+     */
+    public void getRect(int time, Rect out) {
+        getFrameRect(getFrame(time), out);
+    }
+    
+    /**
+     * Return the index of the frame that should be displayed at the given
+     * time. Requires {@code 0 <= time < totalTime}.
+     * 
+     * @param time the number of 10-millisecond intervals since the start of
+     *             the animation
+     * @return the frame index
+     * @throws IllegalArgumentException if {@code time} is invalid
+     */
+    public int getFrame(int time) {
+        if (time < 0 || time >= totalTime) throw new IllegalArgumentException("Invalid frame time.");
+        
+        // Find the first frame that ends after the given time.
+        int low = 0;
+        int high = frameEnds.length - 1;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (frameEnds[mid] > time) {
+                high = mid;
+            } else {
+                low = mid + 1;
+            }
+        }
+        return low;
+    }
+    
+    /**
+     * Return the index of the frame that should be displayed at the given
+     * time, checking first the frame that was displayed at an earlier time
+     * and the one after it. As animations are drawn in order, this usually
+     * avoids searching. Requires {@code 0 <= time < totalTime}.
+     * 
+     * @param time the number of 10-millisecond intervals since the start of
+     *             the animation
+     * @param hint the frame that was displayed previously
+     * @return the frame index
+     * @throws IllegalArgumentException if {@code time} is invalid
+     */
+    public int getFrame(int time, int hint) {
+        if (hint >= 0 && hint < frameEnds.length) {
+            if (isFrameAt(hint, time)) return hint;
+            int next = hint + 1 < frameEnds.length ? hint + 1 : 0;
+            if (isFrameAt(next, time)) return next;
+        }
+        return getFrame(time);
+    }
+    
+    /**
+     * Return the boundary of a frame within the complete image. Only the
+     * trimmed part of the frame is included.
+     * 
+     * @param frame the frame index
+     * @param out   the rectangle to receive the boundary
+     */
+    public void getFrameRect(int frame, Rect out) {
+        out.set(slotRects[frameSlots[frame]]);
+    }
+    
+    /**
+     * Return the part of a frame that is not transparent, relative to the
+     * top left corner of the full {@code frameWidth} by {@code frameHeight}
+     * frame. This is where the image from {@link #getFrameRect} belongs.
+     * 
+     * @param frame the frame index
+     * @param out   the rectangle to receive the bounds, which is empty if the
+     *              whole frame is transparent
+     */
+    public void getFrameTrim(int frame, Rect out) {
+        out.set(slotTrims[frameSlots[frame]]);
+    }
+    
+    /**
+     * Returns the slot in the bitmap that holds a frame's image. Frames with
+     * identical images have the same slot.
+     * 
+     * @param frame the frame index
+     * @return the slot index
+     */
+    public int getSlot(int frame) {
+        return frameSlots[frame];
+    }
+    
+    /**
+     * Returns the number of distinct images in the bitmap.
+     * 
+     * @return the slot count, at most the frame count
+     */
+    public int getSlotCount() {
+        return slotRects.length;
+    }
+    
+    /**
+     * Return the boundary of a slot within the complete image.
+     * 
+     * @param slot the slot index
+     * @param out  the rectangle to receive the boundary
+     */
+    public void getSlotRect(int slot, Rect out) {
+        out.set(slotRects[slot]);
+    }
+    
+    /**
+     * Returns the number of frames in the animation.
+     * 
+     * @return the frame count
+     */
+    public int getFrameCount() {
+        return frameTimes.length;
+    }
+    
+    /**
+     * Returns how long the frame being displayed at the given time will
+     * continue to be displayed. Requires {@code 0 <= time < totalTime}.
+     * 
+     * @param time the number of 10-millisecond intervals since the start of
+     *             the animation
+     * @return the number of 10-millisecond intervals until the next frame
+     *         starts (or the animation loops)
      * @throws IllegalArgumentException if {@code time} is invalid
      */
-    public Rect getRect(int time) {
-        if (time < 0) throw new IllegalArgumentException("Invalid frame time.");
-        for (int frame = 0; frame < frameTimes.length; frame++) {
-            if (time < frameTimes[frame]) return new Rect(frameWidth * frame, 0, frameWidth * (frame + 1), frameHeight);
-            time -= frameTimes[frame];
+    public int getTimeToNextFrame(int time) {
+        return frameEnds[getFrame(time)] - time;
+    }
+    
+    private boolean isFrameAt(int frame, int time) {
+        int start = frame == 0 ? 0 : frameEnds[frame - 1];
+        return time >= start && time < frameEnds[frame];
+    }
+    
+    /**
+     * Determines whether each frame of this sheet is the horizontal flip of
+     * the same frame of another sheet, with the same timings.
+     * 
+     * @param other the other sheet
+     * @return {@code true} if this sheet is the mirror image of {@code other}
+     */
+    public boolean isMirrorOf(SpriteSheet other) {
+        if (frameWidth != other.frameWidth || frameHeight != other.frameHeight) return false;
+        if (!Arrays.equals(frameTimes, other.frameTimes)) return false;
+        if (!Arrays.equals(frameSlots, other.frameSlots)) return false;
+        
+        for (int slot = 0; slot < slotRects.length; slot++) {
+            Rect trim = slotTrims[slot];
+            Rect otherTrim = other.slotTrims[slot];
+            if (trim.isEmpty() && otherTrim.isEmpty()) continue;
+            if (trim.top != otherTrim.top || trim.bottom != otherTrim.bottom) return false;
+            if (trim.left != frameWidth - otherTrim.right || trim.right != frameWidth - otherTrim.left) return false;
+            
+            Rect src = slotRects[slot];
+            Rect otherSrc = other.slotRects[slot];
+            int width = src.width();
+            int[] row = new int[width];
+            int[] otherRow = new int[width];
+            for (int y = 0; y < src.height(); y++) {
+                bitmap.getPixels(row, 0, width, src.left, src.top + y, width, 1);
+                other.bitmap.getPixels(otherRow, 0, width, otherSrc.left, otherSrc.top + y, width, 1);
+                for (int x = 0; x < width; x++) {
+                    if (row[x] != otherRow[width - 1 - x]) return false;
+                }
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Frees the bitmap if the images can be restored from their indexed form,
+     * making the indexed form first if this is the first time. The bitmap
+     * goes to the {@link BitmapPool} for reuse, so must no longer be in use.
+     */
+    public void compact() {
+        if (bitmap == null || !indexable) return;
+        if (indexed == null) {
+            indexed = IndexedImage.fromBitmap(bitmap);
+            if (indexed == null) {
+                indexable = false;
+                return;
+            }
         }
-        throw new IllegalArgumentException("Invalid frame time.");
+        BitmapPool.getInstance().put(bitmap);
+        bitmap = null;
+    }
+    
+    /**
+     * Restores the bitmap after {@link #compact()}.
+     */
+    public void expand() {
+        if (bitmap == null) bitmap = indexed.toBitmap();
+    }
+    
+    /**
+     * Returns the amount of memory used by the images, in whichever forms
+     * they are currently held.
+     * 
+     * @return the size in bytes
+     */
+    public long getSize() {
+        long size = 0;
+        if (bitmap != null) size += BitmapPool.getBytes(bitmap);
+        if (indexed != null) size += indexed.getSize();
+        return size;
     }
     
     private void setInternals() {
         totalTime = 0;
-        for (int x : frameTimes) totalTime += x;
+        frameEnds = new int[frameTimes.length];
+        for (int i = 0; i < frameTimes.length; i++) {
+            totalTime += frameTimes[i];
+            frameEnds[i] = totalTime;
+        }
         frameWidth = bitmap.getWidth() / frameTimes.length;
         frameHeight = bitmap.getHeight();
+        packFrames();
+    }
+    
+    /**
+     * Assigns each distinct frame image a slot and trims it, then packs the
+     * bitmap down to just the trimmed slots, side by side, if that makes it
+     * any smaller.
+     */
+    private void packFrames() {
+        int frames = frameTimes.length;
+        frameSlots = new int[frames];
+        int width = bitmap.getWidth();
+        int[] pixels = new int[width * frameHeight];
+        bitmap.getPixels(pixels, 0, width, 0, 0, width, frameHeight);
+        
+        // Compare hashes first, so that most frames that differ are only
+        // read once.
+        int[] hashes = new int[frames];
+        int[] slotFrames = new int[frames]; // The first frame in each slot.
+        int slotCount = 0;
+        for (int frame = 0; frame < frames; frame++) {
+            hashes[frame] = hashFrame(pixels, width, frame);
+            int slot = 0;
+            while (slot < slotCount) {
+                int other = slotFrames[slot];
+                if (hashes[other] == hashes[frame] && framesEqual(pixels, width, other, frame)) break;
+                slot++;
+            }
+            if (slot == slotCount) slotFrames[slotCount++] = frame;
+            frameSlots[frame] = slot;
+        }
+        
+        slotRects = new Rect[slotCount];
+        slotTrims = new Rect[slotCount];
+        int packedWidth = 0;
+        int packedHeight = 0;
+        for (int slot = 0; slot < slotCount; slot++) {
+            Rect trim = getOpaqueBounds(pixels, width, slotFrames[slot]);
+            slotTrims[slot] = trim;
+            slotRects[slot] = new Rect(packedWidth, 0, packedWidth + trim.width(), trim.height());
+            packedWidth += trim.width();
+            packedHeight = Math.max(packedHeight, trim.height());
+        }
+        if (slotCount == frames && packedWidth == frameWidth * frames && packedHeight == frameHeight) {
+            return; // Nothing repeated or trimmed, so the slots are where the frames already are.
+        }
+        
+        Bitmap packed = BitmapPool.getInstance().obtain(Math.max(packedWidth, 1), Math.max(packedHeight, 1));
+        packed.eraseColor(0);
+        for (int slot = 0; slot < slotCount; slot++) {
+            Rect trim = slotTrims[slot];
+            if (trim.isEmpty()) continue;
+            int offset = trim.top * width + slotFrames[slot] * frameWidth + trim.left;
+            packed.setPixels(pixels, offset, width, slotRects[slot].left, 0, trim.width(), trim.height());
+        }
+        BitmapPool.getInstance().put(bitmap);
+        bitmap = packed;
+    }
+    
+    /**
+     * Finds the smallest rectangle within a frame that contains all of its
+     * pixels that are not fully transparent.
+     */
+    private Rect getOpaqueBounds(int[] pixels, int width, int frame) {
+        int left = frameWidth;
+        int top = frameHeight;
+        int right = 0;
+        int bottom = 0;
+        for (int y = 0; y < frameHeight; y++) {
+            int offset = y * width + frame * frameWidth;
+            for (int x = 0; x < frameWidth; x++) {
+                if ((pixels[offset + x] >>> 24) == 0) continue;
+                left = Math.min(left, x);
+                top = Math.min(top, y);
+                right = Math.max(right, x + 1);
+                bottom = Math.max(bottom, y + 1);
+            }
+        }
+        if (left >= right) return new Rect(0, 0, 0, 0);
+        return new Rect(left, top, right, bottom);
+    }
+    
+    private int hashFrame(int[] pixels, int width, int frame) {
+        int hash = 0;
+        for (int y = 0; y < frameHeight; y++) {
+            int offset = y * width + frame * frameWidth;
+            for (int x = 0; x < frameWidth; x++) hash = hash * 31 + pixels[offset + x];
+        }
+        return hash;
+    }
+    
+    private boolean framesEqual(int[] pixels, int width, int a, int b) {
+        for (int y = 0; y < frameHeight; y++) {
+            int offsetA = y * width + a * frameWidth;
+            int offsetB = y * width + b * frameWidth;
+            for (int x = 0; x < frameWidth; x++) {
+                if (pixels[offsetA + x] != pixels[offsetB + x]) return false;
+            }
+        }
+        return true;
     }
     
 }
@@ -0,0 +1,101 @@
+package uk.cpjsmith.ponypaper;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+
+/**
+ * Holds the accumulated image for Berry Punch mode. Each frame the previous
+ * contents are faded by drawing the background over them translucently, the
+ * ponies are drawn on top, and the result is copied to the surface in one go.
+ * Keeping the image in our own bitmap means the effect does not depend on the
+ * surface preserving its contents between frames.
+ */
+public class TrailBuffer {
+    
+    private Bitmap buffer = null;
+    private Canvas canvas = null;
+    private final Paint fadePaint = new Paint();
+    private boolean hasImage = false;
+    
+    private int width = 0;
+    private int height = 0;
+    
+    /**
+     * Creates a new {@code TrailBuffer} with the default trail length.
+     */
+    public TrailBuffer() {
+        setLength(4);
+    }
+    
+    /**
+     * Sets how long the trails are. Each frame the old image is faded by
+     * {@code 1 / (frames + 1)}, so a pony's image drops to around 40% of
+     * its strength after this many frames.
+     * 
+     * @param frames the trail length, at least {@code 1}
+     */
+    public void setLength(int frames) {
+        fadePaint.setAlpha(255 / (Math.max(1, frames) + 1));
+    }
+    
+    /**
+     * Sets the size of the surface that the buffer will be copied to. Changing
+     * the size discards the accumulated image.
+     * 
+     * @param width  the width in pixels
+     * @param height the height in pixels
+     */
+    public void setSize(int width, int height) {
+        if (width != this.width || height != this.height) {
+            this.width = width;
+            this.height = height;
+            release();
+        }
+    }
+    
+    /**
+     * Discards the accumulated image, so that the next frame starts from the
+     * plain background.
+     */
+    public void clear() {
+        hasImage = false;
+    }
+    
+    /**
+     * Frees the buffer. It is allocated again when next needed.
+     */
+    public void release() {
+        buffer = null;
+        canvas = null;
+        hasImage = false;
+    }
+    
+    /**
+     * Fades the accumulated image towards the background, ready for the
+     * ponies to be drawn on top.
+     * 
+     * @param background the background to fade towards
+     * @return the canvas to draw the ponies on
+     */
+    public Canvas beginFrame(BackgroundCompositor background) {
+        if (buffer == null) {
+            buffer = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            canvas = new Canvas(buffer);
+        }
+        
+        background.drawOn(canvas, hasImage ? fadePaint : null);
+        hasImage = true;
+        return canvas;
+    }
+    
+    /**
+     * Copies the accumulated image to a canvas.
+     * 
+     * @param c the canvas to draw on
+     */
+    public void drawOn(Canvas c) {
+        if (buffer != null) c.drawBitmap(buffer, 0, 0, null);
+    }
+    
+}